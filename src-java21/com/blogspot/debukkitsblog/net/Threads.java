@@ -0,0 +1,59 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads used by <code>Server</code> and <code>Client</code>,
+ * supporting both platform and virtual threads. This is the Java 21 version of
+ * the class, packaged in <code>META-INF/versions/21</code> of the
+ * multi-release JAR.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	/**
+	 * @return true, if the running Java version supports virtual threads
+	 */
+	static boolean isVirtualSupported() {
+		return true;
+	}
+
+	/**
+	 * Creates a thread that has not been started yet
+	 *
+	 * @param task
+	 *            The task executed by the thread
+	 * @param name
+	 *            The name of the thread
+	 * @param virtual
+	 *            true, if a virtual thread is to be created
+	 * @param daemon
+	 *            Whether a platform thread is a daemon thread. Virtual threads
+	 *            always are.
+	 * @return The new thread
+	 */
+	static Thread newThread(Runnable task, String name, boolean virtual, boolean daemon) {
+		if (virtual) {
+			return Thread.ofVirtual().name(name).unstarted(task);
+		}
+		return Thread.ofPlatform().name(name).daemon(daemon).unstarted(task);
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for every task
+	 *
+	 * @param name
+	 *            The prefix of the names of the executor's threads
+	 * @return The new executor
+	 */
+	static ExecutorService newVirtualExecutor(String name) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+	}
+
+}
@@ -1,21 +1,41 @@
 package com.blogspot.debukkitsblog.crypt;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 /**
  * A CryptedObject stores the encrypted data generated using the <code>Crypter</code> utility
  * @author Leonard Bienbeck
- * @version 2.3.0
+ * @version 2.4.0
  */
 public class CryptedObject implements Serializable {
-	
+
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = -5575861158027167628L;
-	
+
+	/**
+	 * The maximum length of a chunk of streamed data accepted
+	 */
+	private static final int MAX_CHUNK_LENGTH = 1 << 20;
+
 	private byte[] bytes;
-	
+
+	/**
+	 * Whether the encrypted data follows the fields in chunks, see
+	 * <code>writeObject</code>
+	 */
+	private boolean streamed;
+
+	private transient Crypter crypter;
+	private transient Object plain;
+
 	/**
 	 * Constructs a CryptedObject by taking an array of bytes and storing it
 	 * @param bytes The array of bytes to be stored
@@ -23,13 +43,96 @@ public class CryptedObject implements Serializable {
 	public CryptedObject(byte[] bytes) {
 		this.bytes = bytes;
 	}
-	
+
+	/**
+	 * Constructs a CryptedObject encrypting an object once it is serialized, see
+	 * <code>Crypter.encryptOnWrite(Object o)</code>
+	 * @param crypter The Crypter to encrypt the object with
+	 * @param plain The object to encrypt
+	 */
+	CryptedObject(Crypter crypter, Object plain) {
+		this.crypter = crypter;
+		this.plain = plain;
+	}
+
 	/**
-	 * Returns the bytes stored in the CryptedObject
+	 * Returns the bytes stored in the CryptedObject. If the object has not been
+	 * encrypted yet, it is encrypted now.
 	 * @return The bytes stored in the CryptedObject
 	 */
 	public byte[] getBytes(){
+		if (bytes == null && crypter != null) {
+			try {
+				bytes = crypter.encrypt(plain).getBytes();
+			} catch (Exception e) {
+				throw new IllegalStateException("Encryption failed", e);
+			}
+		}
 		return bytes;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Writes the encrypted data. An object not encrypted yet is encrypted straight
+	 * into the stream, in chunks preceded by their length and terminated by an
+	 * empty chunk, since its encrypted length is not known in advance.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		boolean stream = bytes == null && crypter != null;
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("bytes", bytes);
+		fields.put("streamed", stream);
+		out.writeFields();
+		if (stream) {
+			crypter.encrypt(plain, new ChunkOutputStream(out));
+			out.writeInt(0);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (streamed) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] chunk = new byte[0];
+			int length;
+			while ((length = in.readInt()) > 0) {
+				if (length > MAX_CHUNK_LENGTH) {
+					throw new InvalidObjectException("Chunk too long: " + length);
+				}
+				if (chunk.length < length) {
+					chunk = new byte[length];
+				}
+				in.readFully(chunk, 0, length);
+				data.write(chunk, 0, length);
+			}
+			bytes = data.toByteArray();
+			streamed = false;
+		}
+	}
+
+	/**
+	 * Writes every chunk of encrypted bytes preceded by its length
+	 */
+	private static final class ChunkOutputStream extends OutputStream {
+
+		private final ObjectOutputStream out;
+
+		ChunkOutputStream(ObjectOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0) {
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+	}
+
+}
@@ -2,28 +2,315 @@ package com.blogspot.debukkitsblog.crypt;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.Key;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * Provides methods to encrypt and decrypt Objects
- * 
+ * Provides methods to encrypt and decrypt Objects<br>
+ * An instance is bound to a password. It derives the key once and keeps an
+ * initialized <code>Cipher</code> per thread, so encrypting many messages with
+ * the same password costs little more than the encryption itself. Instances
+ * are thread-safe. The static methods use instances cached per password.<br>
+ * Objects can be encrypted straight into an <code>OutputStream</code> or a
+ * <code>ByteBuffer</code> and decrypted straight from an
+ * <code>InputStream</code> or a <code>ByteBuffer</code>: they are serialized
+ * and encrypted (or decrypted and deserialized) chunk by chunk, so neither the
+ * serialized nor the encrypted object is ever held in memory as a whole.
+ *
  * @author Leonard Bienbeck
+ * @version 2.4.0
  */
 public class Crypter {
 
 	private static final String ALGO = "AES";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The number of passwords the static methods keep the instance of
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	/**
+	 * The number of bytes passed through the cipher at once when streaming
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	private static final Map<String, Crypter> CACHE = new LinkedHashMap<String, Crypter>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Crypter> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final Key key;
+	private final ThreadLocal<Cipher> encrypter = new CipherCache(Cipher.ENCRYPT_MODE);
+	private final ThreadLocal<Cipher> decrypter = new CipherCache(Cipher.DECRYPT_MODE);
+	private final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	/**
+	 * Constructs a Crypter encrypting and decrypting using the given password
+	 *
+	 * @param password
+	 *            The password to use. Warning: This password will be extended or
+	 *            shortened to match a length of 16 characters (128 bit).
+	 *            Therefore be careful! Different passwords, starting with the same
+	 *            sixteen characters, result in the same AES key.
+	 * @throws IllegalArgumentException
+	 *             If the password is empty or does not result in a valid AES
+	 *             key
+	 */
+	public Crypter(String password) {
+		this.key = generateKey(password);
+		// Fail here rather than on first use if the key is invalid
+		encrypter.get();
+	}
 
 	/**
 	 * Encrypts an Object and returns its encrypted equivalent CryptedObject
-	 * 
+	 *
+	 * @param o
+	 *            The object to encrypt
+	 * @return The CryptedObject equivalent of the given object
+	 * @throws IOException
+	 *             If the object cannot be serialized
+	 * @throws GeneralSecurityException
+	 *             If the encryption fails
+	 */
+	public CryptedObject encrypt(Object o) throws IOException, GeneralSecurityException {
+		Buffer bos = buffer.get();
+		bos.reset();
+		try {
+			encrypt(o, bos);
+			return new CryptedObject(bos.toByteArray());
+		} finally {
+			bos.release();
+		}
+	}
+
+	/**
+	 * Serializes and encrypts an Object straight into a stream. The bytes
+	 * written are the same as those of the CryptedObject returned by
+	 * <code>encrypt(Object o)</code>.
+	 *
+	 * @param o
+	 *            The object to encrypt
+	 * @param out
+	 *            The stream to write the encrypted object to. It is not closed.
+	 * @throws IOException
+	 *             If the object cannot be serialized, the encryption fails or
+	 *             writing to the stream fails
+	 */
+	public void encrypt(Object o, final OutputStream out) throws IOException {
+		encrypt(o, new CipherSink() {
+			@Override
+			void emit(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		});
+	}
+
+	/**
+	 * Serializes and encrypts an Object straight into a buffer, which may be a
+	 * direct buffer
+	 *
+	 * @param o
+	 *            The object to encrypt
+	 * @param dst
+	 *            The buffer to put the encrypted object into, starting at its
+	 *            position. Its position is advanced by the number of bytes put.
+	 * @throws IOException
+	 *             If the object cannot be serialized or the encryption fails
+	 * @throws BufferOverflowException
+	 *             If the encrypted object does not fit into the buffer. The
+	 *             position of the buffer is not changed then.
+	 */
+	public void encrypt(Object o, final ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		try {
+			encrypt(o, new CipherSink() {
+				@Override
+				void emit(byte[] b, int off, int len) {
+					dst.put(b, off, len);
+				}
+			});
+		} catch (BufferOverflowException e) {
+			dst.position(start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Serializes an Object into a cipher sink and completes the encryption
+	 */
+	private void encrypt(Object o, CipherSink sink) throws IOException {
+		boolean finished = false;
+		try {
+			ObjectOutput out = new ObjectOutputStream(sink);
+			out.writeObject(o);
+			out.flush();
+			sink.finish();
+			finished = true;
+		} finally {
+			if (!finished) {
+				sink.abort();
+			}
+		}
+	}
+
+	/**
+	 * Returns a CryptedObject that is not encrypted until it is serialized, e.g.
+	 * by the transport sending it. The object is then serialized and encrypted
+	 * straight into the serialization stream, without copying the serialized or
+	 * encrypted object. Changes made to the object before it is serialized are
+	 * therefore included.<br>
+	 * The CryptedObject can only be deserialized by this or later versions.
+	 *
+	 * @param o
+	 *            The object to encrypt
+	 * @return The CryptedObject encrypting the object once it is serialized
+	 */
+	public CryptedObject encryptOnWrite(Object o) {
+		return new CryptedObject(this, o);
+	}
+
+	/**
+	 * Decrypts a CryptedObject and returns its decrypted equivalent Object
+	 *
+	 * @param co
+	 *            The CryptedObject to decrypt
+	 * @return The decrypted object
+	 * @throws DecryptionFailedException
+	 *             If decryption fails. A wrong password will cause this.
+	 */
+	public Object decrypt(CryptedObject co) throws DecryptionFailedException {
+		return decrypt(new ByteArrayInputStream(co.getBytes()));
+	}
+
+	/**
+	 * Decrypts and deserializes an Object straight from a stream, reading the
+	 * encrypted object up to the end of the stream
+	 *
+	 * @param in
+	 *            The stream to read the encrypted object from. It is not closed.
+	 * @return The decrypted object
+	 * @throws DecryptionFailedException
+	 *             If decryption fails. A wrong password will cause this.
+	 */
+	public Object decrypt(InputStream in) throws DecryptionFailedException {
+		CipherSource source = new CipherSource(in);
+		try {
+			ObjectInput objectIn = new ObjectInputStream(source);
+			Object o = objectIn.readObject();
+			// Verifies the padding and resets the cipher
+			source.drain();
+			return o;
+		} catch (Exception e) {
+			source.abort();
+			throw new DecryptionFailedException();
+		}
+	}
+
+	/**
+	 * Decrypts and deserializes an Object straight from a buffer, which may be a
+	 * direct buffer
+	 *
+	 * @param src
+	 *            The buffer containing the encrypted object between its position
+	 *            and its limit. Its position is advanced to its limit.
+	 * @return The decrypted object
+	 * @throws DecryptionFailedException
+	 *             If decryption fails. A wrong password will cause this.
+	 */
+	public Object decrypt(final ByteBuffer src) throws DecryptionFailedException {
+		return decrypt(new InputStream() {
+			@Override
+			public int read() {
+				return src.hasRemaining() ? src.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!src.hasRemaining()) {
+					return -1;
+				}
+				int n = Math.min(len, src.remaining());
+				src.get(b, off, n);
+				return n;
+			}
+		});
+	}
+
+	/**
+	 * Encrypts an array of bytes using the AES algorithm
+	 *
+	 * @param data
+	 *            The array of bytes to encrypt
+	 * @return An array of bytes containing the encrypted data
+	 * @throws GeneralSecurityException
+	 *             If the encryption fails
+	 */
+	public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+		// doFinal resets the cipher to its initialized state, so it can be reused
+		return encrypter.get().doFinal(data);
+	}
+
+	/**
+	 * Decrypts an array of bytes using the AES algorithm
+	 *
+	 * @param encryptedData
+	 *            The array of bytes to decrypt
+	 * @return An array of bytes containing the decrypted data
+	 * @throws GeneralSecurityException
+	 *             If the decryption fails, e.g. because the password is wrong
+	 */
+	public byte[] decrypt(byte[] encryptedData) throws GeneralSecurityException {
+		return decrypter.get().doFinal(encryptedData);
+	}
+
+	/**
+	 * Returns the Crypter for a password, creating it if it is not cached
+	 *
+	 * @param password
+	 *            The password to use
+	 * @return The Crypter encrypting and decrypting using the password
+	 */
+	public static Crypter forPassword(String password) {
+		synchronized (CACHE) {
+			Crypter crypter = CACHE.get(password);
+			if (crypter == null) {
+				crypter = new Crypter(password);
+				CACHE.put(password, crypter);
+			}
+			return crypter;
+		}
+	}
+
+	/**
+	 * Encrypts an Object and returns its encrypted equivalent CryptedObject
+	 *
 	 * @param o
 	 *            The object to encrypt
 	 * @param password
@@ -32,10 +319,7 @@ public class Crypter {
 	 */
 	public static CryptedObject encrypt(Object o, String password) {
 		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutput out = new ObjectOutputStream(bos);
-			out.writeObject(o);
-			return new CryptedObject(encrypt(bos.toByteArray(), password));
+			return forPassword(password).encrypt(o);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
@@ -45,7 +329,7 @@ public class Crypter {
 	/**
 	 * Decrypts a CryptedObject using a password and returns its decrypted
 	 * equivalent Object
-	 * 
+	 *
 	 * @param co
 	 *            The CryptedObject to decrypt
 	 * @param password
@@ -55,18 +339,12 @@ public class Crypter {
 	 *             If decryption fails. A wrong password will cause this.
 	 */
 	public static Object decrypt(CryptedObject co, String password) throws DecryptionFailedException {
-		try {
-			ByteArrayInputStream bis = new ByteArrayInputStream(decrypt(co.getBytes(), password));
-			ObjectInput in = new ObjectInputStream(bis);
-			return in.readObject();
-		} catch (Exception e) {
-			throw new DecryptionFailedException();
-		}
+		return forPassword(password).decrypt(co);
 	}
 
 	/**
 	 * Encrypts an array of bytes using the AES algorithm
-	 * 
+	 *
 	 * @param data
 	 *            The array of bytes to encrypt
 	 * @param rawKey
@@ -78,16 +356,12 @@ public class Crypter {
 	 * @throws Exception
 	 */
 	public static byte[] encrypt(byte[] data, String rawKey) throws Exception {
-		Key key = generateKey(rawKey);
-		Cipher c = Cipher.getInstance(ALGO);
-		c.init(Cipher.ENCRYPT_MODE, key);
-		byte[] encVal = c.doFinal(data);
-		return encVal;
+		return forPassword(rawKey).encrypt(data);
 	}
 
 	/**
 	 * Decrypts an array of bytes using the AES algorithm
-	 * 
+	 *
 	 * @param encryptedData
 	 *            The array of bytes to decrtypt
 	 * @param rawKey
@@ -99,11 +373,7 @@ public class Crypter {
 	 * @throws Exception
 	 */
 	public static byte[] decrypt(byte[] encryptedData, String rawKey) throws Exception {
-		Key key = generateKey(rawKey);
-		Cipher c = Cipher.getInstance(ALGO);
-		c.init(Cipher.DECRYPT_MODE, key);
-		byte[] decValue = c.doFinal(encryptedData);
-		return decValue;
+		return forPassword(rawKey).decrypt(encryptedData);
 	}
 
 	/**
@@ -111,24 +381,252 @@ public class Crypter {
 	 * Warning: This <i>key</i> will be extended or shortened to match a length of
 	 * 16 bytes (128 bit). Therefore be careful! Different passwords, starting with
 	 * the same sixteen characters, result in the same AES key.
-	 * 
+	 *
 	 * @param key A String of 128 bit (16 characters)
 	 * @return An AES compatible Key object used by the encrypter to encrypt the data
-	 * @throws Exception
 	 */
-	private static Key generateKey(String key) throws Exception {
-		String resultKey = key;
-		while (key.length() < 16) {
-			resultKey += resultKey;
+	private static Key generateKey(String key) {
+		if (key == null || key.isEmpty()) {
+			throw new IllegalArgumentException("Password may not be empty");
 		}
-		while (resultKey.length() > 16) {
-			resultKey = resultKey.substring(0, resultKey.length() - 1);
+		// Repeat the key until it is long enough, then cut it to 16 characters
+		StringBuilder resultKey = new StringBuilder(key);
+		while (resultKey.length() < 16) {
+			resultKey.append(resultKey);
 		}
+		resultKey.setLength(16);
 
-		byte[] keyValue = resultKey.getBytes(Charset.forName("UTF-8"));
+		byte[] keyValue = resultKey.toString().getBytes(UTF8);
 		return new SecretKeySpec(keyValue, ALGO);
 	}
 
+	/**
+	 * Creates the initialized Cipher of a thread when it is first needed
+	 */
+	private final class CipherCache extends ThreadLocal<Cipher> {
+
+		private final int mode;
+
+		CipherCache(int mode) {
+			this.mode = mode;
+		}
+
+		@Override
+		protected Cipher initialValue() {
+			try {
+				Cipher c = Cipher.getInstance(ALGO);
+				c.init(mode, key);
+				return c;
+			} catch (InvalidKeyException e) {
+				throw new IllegalArgumentException("Password does not result in a valid AES key", e);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("AES not available", e);
+			}
+		}
+
+	}
+
+	/**
+	 * Encrypts the bytes written to it chunk by chunk using the encrypting
+	 * Cipher of the calling thread
+	 */
+	private abstract class CipherSink extends OutputStream {
+
+		private final Cipher cipher = encrypter.get();
+		private final byte[] input = new byte[CHUNK_SIZE];
+		private final byte[] output = new byte[CHUNK_SIZE + cipher.getBlockSize()];
+		private int buffered;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (buffered == input.length) {
+				encryptBuffered();
+			}
+			input[buffered++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			// Serialization writes many tiny pieces, collect them into chunks
+			if (buffered + len <= input.length) {
+				System.arraycopy(b, off, input, buffered, len);
+				buffered += len;
+				return;
+			}
+			encryptBuffered();
+			while (len >= CHUNK_SIZE) {
+				encrypt(b, off, CHUNK_SIZE);
+				off += CHUNK_SIZE;
+				len -= CHUNK_SIZE;
+			}
+			System.arraycopy(b, off, input, 0, len);
+			buffered = len;
+		}
+
+		private void encryptBuffered() throws IOException {
+			if (buffered > 0) {
+				encrypt(input, 0, buffered);
+				buffered = 0;
+			}
+		}
+
+		private void encrypt(byte[] b, int off, int len) throws IOException {
+			try {
+				int encrypted = cipher.update(b, off, len, output);
+				if (encrypted > 0) {
+					emit(output, 0, encrypted);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Encrypts the last block and resets the Cipher
+		 */
+		void finish() throws IOException {
+			encryptBuffered();
+			try {
+				int encrypted = cipher.doFinal(output, 0);
+				if (encrypted > 0) {
+					emit(output, 0, encrypted);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Resets the Cipher after a failure, discarding the pending block
+		 */
+		void abort() {
+			reinitialize(cipher, Cipher.ENCRYPT_MODE);
+		}
+
+		/**
+		 * Passes encrypted bytes on
+		 */
+		abstract void emit(byte[] b, int off, int len) throws IOException;
+
+	}
+
+	/**
+	 * Decrypts the bytes read from a stream chunk by chunk using the decrypting
+	 * Cipher of the calling thread
+	 */
+	private final class CipherSource extends InputStream {
+
+		private final InputStream in;
+		private final Cipher cipher = decrypter.get();
+		private final byte[] input = new byte[CHUNK_SIZE];
+		private final byte[] output = new byte[CHUNK_SIZE + cipher.getBlockSize()];
+		private int position;
+		private int limit;
+		private boolean finished;
+
+		CipherSource(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (position == limit) {
+				if (finished) {
+					return -1;
+				}
+				fill();
+			}
+			int n = Math.min(len, limit - position);
+			System.arraycopy(output, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+
+		/**
+		 * Decrypts the next chunk of the stream, or the last block at its end
+		 */
+		private void fill() throws IOException {
+			position = 0;
+			int n = in.read(input);
+			try {
+				if (n < 0) {
+					limit = cipher.doFinal(output, 0);
+					finished = true;
+				} else {
+					limit = cipher.update(input, 0, n, output);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Reads the rest of the stream, completing the decryption
+		 */
+		void drain() throws IOException {
+			while (!finished) {
+				fill();
+			}
+		}
+
+		/**
+		 * Resets the Cipher after a failure, discarding the pending block
+		 */
+		void abort() {
+			if (!finished) {
+				reinitialize(cipher, Cipher.DECRYPT_MODE);
+			}
+		}
+
+	}
+
+	/**
+	 * Initializes a Cipher again, discarding any data it has buffered
+	 */
+	private void reinitialize(Cipher cipher, int mode) {
+		try {
+			cipher.init(mode, key);
+		} catch (InvalidKeyException e) {
+			// The key has been used to initialize the cipher before
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A reusable output buffer, not keeping large arrays
+	 */
+	private static final class Buffer extends ByteArrayOutputStream {
+
+		/**
+		 * The size a buffer may keep between two uses
+		 */
+		private static final int MAX_RETAINED = 64 * 1024;
+
+		/**
+		 * Drops the array if a large object has grown it
+		 */
+		void release() {
+			if (buf.length > MAX_RETAINED) {
+				buf = new byte[32];
+			}
+		}
+
+	}
+
 	/**
 	 * The exception thrown when a decryption fails.<br>
 	 * This might happen if the password is wrong.
@@ -136,7 +634,7 @@ public class Crypter {
 	public static class DecryptionFailedException extends Exception {
 
 		/**
-		 * 
+		 *
 		 */
 		private static final long serialVersionUID = 5911192741823907010L;
 
@@ -1,34 +1,167 @@
 package com.blogspot.debukkitsblog.crypt;
 
 import java.math.BigInteger;
-import java.util.Random;
+import java.security.SecureRandom;
 
+/**
+ * Computes a key shared by two parties using the Diffie-Hellman key exchange.
+ * Both parties use the same group, i.e. prime and generator, and send each
+ * other their public key. The final key computed from the remote public key is
+ * the same on both sides, while an eavesdropper cannot compute it.<br>
+ * By default, the well-known 2048 bit MODP group of RFC 3526 is used, so no
+ * prime has to be generated and creating a DHKeyFactory costs only a random
+ * secret. Computing the public and the final key costs one modular
+ * exponentiation each; use a <code>DHKeyPool</code> to compute the public keys
+ * in advance. A DHKeyFactory must only be used for a single key exchange.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
 public class DHKeyFactory {
 
+	/**
+	 * The well-known groups, i.e. primes and generators, of RFC 3526. The primes
+	 * are safe primes, and 2 generates the subgroup of prime order.
+	 */
+	public enum Group {
+
+		/**
+		 * The 2048 bit MODP group (group 14). The default.
+		 */
+		MODP_2048(
+				"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+				+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+				+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+				+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+				+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+				+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+				+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+				+ "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 256),
+
+		/**
+		 * The 3072 bit MODP group (group 15)
+		 */
+		MODP_3072(
+				"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+				+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+				+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+				+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+				+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+				+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+				+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+				+ "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+				+ "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+				+ "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+				+ "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+				+ "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A93AD2CAFFFFFFFFFFFFFFFF", 256),
+
+		/**
+		 * The 4096 bit MODP group (group 16)
+		 */
+		MODP_4096(
+				"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+				+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+				+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+				+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+				+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+				+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+				+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+				+ "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+				+ "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+				+ "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+				+ "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+				+ "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A92108011A723C12A787E6D7"
+				+ "88719A10BDBA5B2699C327186AF4E23C1A946834B6150BDA2583E9CA2AD44CE8"
+				+ "DBBBC2DB04DE8EF92E8EFC141FBECAA6287C59474E6BC05D99B2964FA090C3A2"
+				+ "233BA186515BE7ED1F612970CEE2D7AFB81BDD762170481CD0069127D5B05AA9"
+				+ "93B4EA988D8FDDC186FFB7DC90A6C08F4DF435C934063199FFFFFFFFFFFFFFFF", 320);
+
+		private final BigInteger prime;
+		private final int secretBits;
+
+		Group(String prime, int secretBits) {
+			this.prime = new BigInteger(prime, 16);
+			this.secretBits = secretBits;
+		}
+
+		/**
+		 * @return The prime of the group
+		 */
+		public BigInteger getPrime() {
+			return prime;
+		}
+
+		/**
+		 * @return The generator of the group, always 2
+		 */
+		public BigInteger getGenerator() {
+			return TWO;
+		}
+
+	}
+
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	/**
+	 * The maximum length of secrets used with custom primes
+	 */
+	private static final int MAX_SECRET_BITS = 256;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
 	private BigInteger p, g, s, M, R, K;
 
+	/**
+	 * Constructs a DHKeyFactory using the 2048 bit MODP group of RFC 3526
+	 */
 	public DHKeyFactory() {
-		System.out.println("[DHKey] Generating secure key...");
-		p = new BigInteger(2048, 12, new Random());
-		g = new BigInteger(String.valueOf(12 - new Random().nextInt(10)));
-		do {
-			s = new BigInteger(160, new Random());
-		} while (s.compareTo(new BigInteger("2")) == -1 || s.compareTo(p.subtract(new BigInteger("1"))) == 0);
+		this(Group.MODP_2048);
 	}
-	
+
+	/**
+	 * Constructs a DHKeyFactory using a well-known group
+	 *
+	 * @param group
+	 *            The group both parties use
+	 */
+	public DHKeyFactory(Group group) {
+		this.p = group.getPrime();
+		this.g = group.getGenerator();
+		this.s = generateSecret(group.secretBits);
+	}
+
+	/**
+	 * Constructs a DHKeyFactory using a custom group, e.g. the one received from
+	 * the other party
+	 *
+	 * @param p
+	 *            The prime, which should be a safe prime
+	 * @param g
+	 *            The generator
+	 */
 	public DHKeyFactory(BigInteger p, BigInteger g){
-		System.out.println("[DHKey] Generating secure key...");
 		this.p = p;
 		this.g = g;
+		this.s = generateSecret(Math.min(p.bitLength() - 1, MAX_SECRET_BITS));
+	}
+
+	/**
+	 * @return A random secret between 2 and p - 2
+	 */
+	private BigInteger generateSecret(int bits) {
+		BigInteger secret;
 		do {
-			s = new BigInteger(160, new Random());
-		} while (s.compareTo(new BigInteger("2")) == -1 || s.compareTo(p.subtract(new BigInteger("1"))) == 0);
+			secret = new BigInteger(bits, RANDOM);
+		} while (secret.compareTo(TWO) < 0 || secret.compareTo(p.subtract(BigInteger.ONE)) >= 0);
+		return secret;
 	}
 
 	public void overwriteSecret(BigInteger s){
 		this.s = s;
+		this.M = null;
+		this.K = null;
 	}
-	
+
 	public BigInteger getPrime() {
 		return p;
 	}
@@ -37,6 +170,12 @@ public class DHKeyFactory {
 		return g;
 	}
 
+	/**
+	 * Returns the public key to send to the other party. It is computed on the
+	 * first call.
+	 *
+	 * @return The public key
+	 */
 	public BigInteger getPublicKey() {
 		if (M == null) {
 			M = g.modPow(s, p);
@@ -44,15 +183,39 @@ public class DHKeyFactory {
 		return M;
 	}
 
+	/**
+	 * Sets the public key received from the other party
+	 *
+	 * @param r
+	 *            The remote public key
+	 * @throws IllegalArgumentException
+	 *             If the key is not between 2 and p - 2, which would make the
+	 *             final key predictable
+	 */
 	public void setRemotePublicKey(BigInteger r) {
+		if (r.compareTo(BigInteger.ONE) <= 0 || r.compareTo(p.subtract(BigInteger.ONE)) >= 0) {
+			throw new IllegalArgumentException("Invalid remote public key");
+		}
 		this.R = r;
+		this.K = null;
 	}
 
+	/**
+	 * Returns the key shared with the other party. It is computed on the first
+	 * call.
+	 *
+	 * @return The final key
+	 * @throws IllegalStateException
+	 *             If the remote public key has not been set
+	 */
 	public BigInteger getFinalKey() {
+		if (R == null) {
+			throw new IllegalStateException("Remote public key not set");
+		}
 		if (K == null) {
 			K = R.modPow(s, p);
 		}
-		
+
 		return K;
 	}
 
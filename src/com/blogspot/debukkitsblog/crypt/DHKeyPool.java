@@ -0,0 +1,94 @@
+package com.blogspot.debukkitsblog.crypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps a number of <code>DHKeyFactory</code> instances whose public key has
+ * already been computed, so a key exchange only costs computing the final key.
+ * A background thread refills the pool whenever a factory has been taken. If
+ * the pool is empty, e.g. because many connections are set up at once, a
+ * factory is created on the calling thread instead of waiting.<br>
+ * Every factory is handed out only once, since a key pair must not be reused.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public class DHKeyPool {
+
+	private final DHKeyFactory.Group group;
+	private final BlockingQueue<DHKeyFactory> factories;
+	private final Thread thread;
+
+	/**
+	 * Constructs a pool and starts filling it in the background
+	 *
+	 * @param group
+	 *            The group of the factories
+	 * @param size
+	 *            The number of factories to keep
+	 */
+	public DHKeyPool(DHKeyFactory.Group group, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		this.group = group;
+		this.factories = new ArrayBlockingQueue<DHKeyFactory>(size);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						factories.put(create());
+					}
+				} catch (InterruptedException e) {
+					// Pool closed
+				}
+			}
+		}, "DHKeyPool");
+		thread.setDaemon(true);
+		// Precomputing must not slow down the key exchanges themselves
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Takes a factory whose public key has already been computed, or creates one
+	 * if the pool is empty
+	 *
+	 * @return A factory not handed out before
+	 */
+	public DHKeyFactory take() {
+		DHKeyFactory factory = factories.poll();
+		return factory != null ? factory : create();
+	}
+
+	/**
+	 * @return The number of factories ready to be taken
+	 */
+	public int available() {
+		return factories.size();
+	}
+
+	/**
+	 * @return The group of the factories
+	 */
+	public DHKeyFactory.Group getGroup() {
+		return group;
+	}
+
+	/**
+	 * Stops refilling the pool and discards the factories in it
+	 */
+	public void close() {
+		thread.interrupt();
+		factories.clear();
+	}
+
+	private DHKeyFactory create() {
+		DHKeyFactory factory = new DHKeyFactory(group);
+		factory.getPublicKey();
+		return factory;
+	}
+
+}
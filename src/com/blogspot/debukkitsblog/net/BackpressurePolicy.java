@@ -0,0 +1,53 @@
+package com.blogspot.debukkitsblog.net;
+
+/**
+ * What a <code>Server</code> does with messages for a client that does not
+ * receive them as fast as they are sent. Messages waiting to be transmitted
+ * are buffered per connection. If a new message would make the buffered bytes
+ * of a connection exceed the high watermark, the client is throttled and the
+ * policy decides what happens. The client is no longer throttled once its
+ * buffer has been drained below the low watermark.<br>
+ * Replies to requests are never discarded, neither are messages that later
+ * messages of the same connection depend on for decoding.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * The sending thread waits until the buffer has been drained below the low
+	 * watermark. Nothing is lost, but a broadcast takes as long as the slowest
+	 * throttled client needs.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest buffered messages are discarded to make room for the new one.
+	 * Useful if only recent messages are of interest. If that does not make
+	 * enough room, the new message is discarded, or the connection is closed if
+	 * the new message may not be discarded.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The new message is discarded as long as it does not fit below the high
+	 * watermark.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Buffered messages with the same ID as the new one are discarded, so only
+	 * the latest message of every ID is transmitted. Suits messages carrying a
+	 * complete state that replaces the previous one. If that does not make
+	 * enough room, the new message is discarded, or the connection is closed if
+	 * the new message may not be discarded.
+	 */
+	COALESCE,
+
+	/**
+	 * The connection is closed and the client removed.
+	 */
+	DISCONNECT
+
+}
@@ -0,0 +1,283 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact binary encoding of Datapackages used by <code>Codec.BINARY</code>.
+ * A Datapackage is encoded as the number of its elements, the sender's ID and
+ * group name and every element as a tagged value. Strings, primitive wrappers,
+ * byte arrays, ArrayLists and HashMaps have native encodings, all other objects
+ * are embedded using Java serialization.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class BinaryCodec {
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INT = 2;
+	private static final int LONG = 3;
+	private static final int TRUE = 4;
+	private static final int FALSE = 5;
+	private static final int DOUBLE = 6;
+	private static final int FLOAT = 7;
+	private static final int SHORT = 8;
+	private static final int BYTE = 9;
+	private static final int CHAR = 10;
+	private static final int BYTES = 11;
+	private static final int LIST = 12;
+	private static final int MAP = 13;
+	private static final int SERIALIZED = 14;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * Encodes a Datapackage
+	 *
+	 * @param message
+	 *            The Datapackage to encode
+	 * @param out
+	 *            The stream to write the encoded Datapackage to
+	 * @throws IOException
+	 *             If writing fails or an element cannot be serialized
+	 */
+	static void encode(Datapackage message, OutputStream out) throws IOException {
+		writeVarInt(out, message.size());
+		writeValue(out, message.getSenderID());
+		writeValue(out, message.getSenderGroup());
+		for (Object element : message) {
+			writeValue(out, element);
+		}
+	}
+
+	/**
+	 * Decodes a Datapackage
+	 *
+	 * @param payload
+	 *            The array containing the encoded Datapackage
+	 * @param offset
+	 *            The position of the first byte
+	 * @param length
+	 *            The number of bytes
+	 * @return The decoded Datapackage
+	 * @throws IOException
+	 *             If the data is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of a serialized element is unknown
+	 */
+	static Datapackage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+		ByteBuffer in = ByteBuffer.wrap(payload, offset, length);
+		try {
+			int size = readLength(in);
+			String senderID = (String) readValue(in);
+			String senderGroup = (String) readValue(in);
+
+			Datapackage message = new Datapackage(size);
+			for (int i = 0; i < size; i++) {
+				message.add(readValue(in));
+			}
+			message.sign(senderID, senderGroup);
+			return message;
+		} catch (BufferUnderflowException e) {
+			throw new StreamCorruptedException("Truncated Datapackage");
+		} catch (ClassCastException e) {
+			throw new StreamCorruptedException("Invalid sender of Datapackage");
+		}
+	}
+
+	private static void writeValue(OutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.write(NULL);
+			return;
+		}
+
+		Class<?> type = value.getClass();
+		if (type == String.class) {
+			out.write(STRING);
+			writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+		} else if (type == Integer.class) {
+			out.write(INT);
+			writeVarLong(out, zigZag((Integer) value));
+		} else if (type == Long.class) {
+			out.write(LONG);
+			writeVarLong(out, zigZag((Long) value));
+		} else if (type == Boolean.class) {
+			out.write((Boolean) value ? TRUE : FALSE);
+		} else if (type == Double.class) {
+			out.write(DOUBLE);
+			writeFixed(out, Double.doubleToRawLongBits((Double) value), 8);
+		} else if (type == Float.class) {
+			out.write(FLOAT);
+			writeFixed(out, Float.floatToRawIntBits((Float) value), 4);
+		} else if (type == Short.class) {
+			out.write(SHORT);
+			writeFixed(out, (Short) value, 2);
+		} else if (type == Byte.class) {
+			out.write(BYTE);
+			out.write((Byte) value);
+		} else if (type == Character.class) {
+			out.write(CHAR);
+			writeFixed(out, (Character) value, 2);
+		} else if (type == byte[].class) {
+			out.write(BYTES);
+			writeBytes(out, (byte[]) value);
+		} else if (type == ArrayList.class) {
+			List<?> list = (List<?>) value;
+			out.write(LIST);
+			writeVarInt(out, list.size());
+			for (Object element : list) {
+				writeValue(out, element);
+			}
+		} else if (type == HashMap.class) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.write(MAP);
+			writeVarInt(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(out, entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else {
+			// Everything else (including subclasses of the types above) keeps its exact type
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(value);
+			oos.close();
+			out.write(SERIALIZED);
+			writeVarInt(out, bos.size());
+			bos.writeTo(out);
+		}
+	}
+
+	private static Object readValue(ByteBuffer in) throws IOException, ClassNotFoundException {
+		int tag = in.get();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING: {
+			int length = readLength(in);
+			String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+			return value;
+		}
+		case INT:
+			return (int) unZigZag(readVarLong(in));
+		case LONG:
+			return unZigZag(readVarLong(in));
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case DOUBLE:
+			return in.getDouble();
+		case FLOAT:
+			return in.getFloat();
+		case SHORT:
+			return in.getShort();
+		case BYTE:
+			return in.get();
+		case CHAR:
+			return in.getChar();
+		case BYTES: {
+			byte[] value = new byte[readLength(in)];
+			in.get(value);
+			return value;
+		}
+		case LIST: {
+			int size = readLength(in);
+			ArrayList<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		}
+		case MAP: {
+			int size = readLength(in);
+			HashMap<Object, Object> map = new HashMap<Object, Object>();
+			for (int i = 0; i < size; i++) {
+				map.put(readValue(in), readValue(in));
+			}
+			return map;
+		}
+		case SERIALIZED: {
+			int length = readLength(in);
+			ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length));
+			in.position(in.position() + length);
+			return ois.readObject();
+		}
+		default:
+			throw new StreamCorruptedException("Unknown type tag: " + tag);
+		}
+	}
+
+	private static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeFixed(OutputStream out, long value, int bytes) throws IOException {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+
+	private static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(ByteBuffer in) throws StreamCorruptedException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed variable length number");
+	}
+
+	/**
+	 * Reads a length and checks that it does not exceed the remaining data, so a
+	 * corrupt length cannot cause a huge allocation
+	 */
+	private static int readLength(ByteBuffer in) throws StreamCorruptedException {
+		long length = readVarLong(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new StreamCorruptedException("Invalid length: " + length);
+		}
+		return (int) length;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -0,0 +1,562 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection using a non-blocking <code>SocketChannel</code> served by an
+ * <code>EventLoop</code>. Incoming bytes are split into frames and decoded on
+ * the event loop's thread, outgoing frames are queued and written as soon as
+ * the channel accepts more data.<br>
+ * Once a session key has been agreed, the bytes read are decrypted record by
+ * record before they are split into frames, and the frames written are
+ * encrypted by a <code>SealingChannel</code> in between, see
+ * <code>SessionCipher</code>.<br>
+ * In secure mode, all bytes are exchanged through a <code>TlsSession</code>
+ * instead of the channel itself.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+class ChannelConnection extends Connection implements EventLoop.Handler {
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int MAX_RETAINED_BUFFER_SIZE = Frames.HEADER_LENGTH
+			+ Math.max(FileTransfer.CHUNK_SIZE, Frames.MAX_FRAGMENT_LENGTH);
+	private static final int MAX_GATHER = 64;
+
+	private final SocketChannel channel;
+	private final TlsSession tls;
+	private final EventLoop eventLoop;
+	private final Listener listener;
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean flushTimerArmed = new AtomicBoolean();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private SelectionKey key;
+	private volatile boolean closeWhenFlushed;
+
+	// Only accessed by the event loop
+	private SealingChannel sealing;
+	private SessionCipher opener;
+	private ByteBuffer sealedIn;
+	private boolean reading;
+	private boolean flushDeferred;
+	private boolean readScheduled;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			try {
+				flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+	};
+
+	private final Runnable delayedFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushTimerArmed.set(false);
+			try {
+				flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+	};
+
+	private final Runnable readTask = new Runnable() {
+		@Override
+		public void run() {
+			readScheduled = false;
+			try {
+				if (!closed.get()) {
+					read();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+	};
+
+	/**
+	 * Creates a connection for an accepted channel. The channel is not read from
+	 * until <code>register()</code> has been called.
+	 *
+	 * @param channel
+	 *            The accepted channel
+	 * @param eventLoop
+	 *            The event loop serving the channel
+	 * @param listener
+	 *            The listener receiving decoded messages and close events
+	 * @throws IOException
+	 *             If the channel cannot be switched to non-blocking mode
+	 */
+	ChannelConnection(SocketChannel channel, EventLoop eventLoop, Listener listener) throws IOException {
+		this(channel, null, eventLoop, listener);
+	}
+
+	/**
+	 * Creates a connection for an accepted channel secured by TLS. The handshake
+	 * is driven by reading from and writing to the channel.
+	 *
+	 * @param channel
+	 *            The accepted channel
+	 * @param tls
+	 *            The TLS session of the channel, or null to use the channel
+	 *            directly
+	 * @param eventLoop
+	 *            The event loop serving the channel
+	 * @param listener
+	 *            The listener receiving decoded messages and close events
+	 * @throws IOException
+	 *             If the channel cannot be switched to non-blocking mode
+	 */
+	ChannelConnection(SocketChannel channel, TlsSession tls, EventLoop eventLoop, Listener listener)
+			throws IOException {
+		this.channel = channel;
+		this.tls = tls;
+		this.eventLoop = eventLoop;
+		this.listener = listener;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	/**
+	 * Registers the channel with the event loop's selector
+	 */
+	void register() {
+		eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = channel.register(eventLoop.selector(), SelectionKey.OP_READ, ChannelConnection.this);
+				} catch (ClosedChannelException e) {
+					close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The socket of the channel. It is passed to handlers as identifier
+	 *         of the connection, but must not be used for blocking I/O.
+	 */
+	@Override
+	Socket socket() {
+		return channel.socket();
+	}
+
+	@Override
+	boolean isOpen() {
+		return !closed.get();
+	}
+
+	@Override
+	protected void scheduleFlush(boolean batchComplete) {
+		if (batchComplete) {
+			if (flushScheduled.compareAndSet(false, true)) {
+				eventLoop.execute(flushTask);
+			}
+		} else if (flushTimerArmed.compareAndSet(false, true)) {
+			// First frame of a batch, write it together with the following ones
+			eventLoop.schedule(delayedFlushTask, batchDelayNanos());
+		}
+	}
+
+	@Override
+	protected boolean mayBlock() {
+		// The event loop would wait for itself
+		return !eventLoop.inEventLoop();
+	}
+
+	@Override
+	void closeWhenFlushed() {
+		closeWhenFlushed = true;
+		scheduleFlush(true);
+	}
+
+	@Override
+	public void handle(SelectionKey key) throws IOException {
+		if (key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flush();
+		}
+	}
+
+	@Override
+	void encryptSent(SessionCipher cipher) {
+		sealing = new SealingChannel(cipher);
+	}
+
+	@Override
+	void decryptReceived(SessionCipher cipher) {
+		sealedIn = ByteBuffer.allocate(SessionCipher.MAX_SEALED_RECORD);
+		opener = cipher;
+	}
+
+	private void read() throws IOException {
+		// Messages sent by the handlers of received frames are written afterwards
+		reading = true;
+		try {
+			do {
+				boolean decrypting = opener != null;
+				ByteBuffer dst = decrypting ? sealedIn : readBuffer;
+				int n = tls != null ? tls.read(dst) : channel.read(dst);
+				if (n < 0) {
+					close();
+					return;
+				}
+				if (n > 0) {
+					markReceived();
+				}
+
+				if (!decrypting) {
+					processFrames(false);
+				}
+				if (opener != null) {
+					openRecords();
+				}
+				// Records unwrapped at once may not have fit into the buffer
+			} while (tls != null && tls.hasBufferedInput() && !closed.get());
+		} finally {
+			reading = false;
+		}
+
+		// Shrink the buffer again after a large frame has been processed, but keep
+		// one large enough for the chunks of a file or fragments being received
+		if (readBuffer.position() == 0 && readBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			// Decrypted records are appended as a whole
+			readBuffer = ByteBuffer.allocate(
+					opener != null ? INITIAL_BUFFER_SIZE + SessionCipher.MAX_RECORD : INITIAL_BUFFER_SIZE);
+		}
+
+		if (flushDeferred || (tls != null && tls.wantsFlush())) {
+			// Answer the handshake, or write the frames queued before it finished
+			// or while the received ones were processed
+			flushDeferred = false;
+			flush();
+		}
+	}
+
+	/**
+	 * Decrypts the complete records received into the read buffer and processes
+	 * the frames they complete
+	 */
+	private void openRecords() throws IOException {
+		sealedIn.flip();
+		while (sealedIn.remaining() >= SessionCipher.HEADER_LENGTH) {
+			int length = SessionCipher.checkLength(sealedIn.getInt(sealedIn.position()));
+			if (sealedIn.remaining() < SessionCipher.HEADER_LENGTH + length) {
+				break;
+			}
+			int plainLength = length - SessionCipher.TAG_LENGTH;
+			if (readBuffer.remaining() < plainLength) {
+				ByteBuffer larger = ByteBuffer.allocate(readBuffer.position() + plainLength);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+			}
+			ByteBuffer record = sealedIn.duplicate();
+			record.position(sealedIn.position() + SessionCipher.HEADER_LENGTH);
+			record.limit(record.position() + length);
+			opener.open(length, record, readBuffer);
+			sealedIn.position(record.limit());
+			processFrames(true);
+		}
+		sealedIn.compact();
+	}
+
+	/**
+	 * Processes the complete frames in the read buffer. The buffer is left ready
+	 * for appending the bytes of the next frame. If the frames processed switch
+	 * the connection to decryption, the bytes following them are moved to the
+	 * buffer of the encrypted records.
+	 *
+	 * @param decrypted
+	 *            true, if the read buffer holds decrypted bytes
+	 */
+	private void processFrames(boolean decrypted) throws IOException {
+		readBuffer.flip();
+		while ((decrypted || opener == null) && readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+			int length = Frames.checkLength(readBuffer.getInt(readBuffer.position()));
+			int frameLength = Frames.HEADER_LENGTH + length;
+
+			if (readBuffer.remaining() < frameLength) {
+				if (frameLength > readBuffer.capacity() && readBuffer.remaining() == readBuffer.capacity()) {
+					// Frame does not fit, grow the buffer as its bytes arrive, not as announced
+					ByteBuffer larger = ByteBuffer.allocate((int) Math.min(frameLength, 2L * readBuffer.capacity()));
+					larger.put(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+
+			int correlationId = readBuffer.getInt(readBuffer.position() + 4);
+			int flags = readBuffer.get(readBuffer.position() + 8) & 0xFF;
+			int start = readBuffer.position() + Frames.HEADER_LENGTH;
+			readBuffer.position(start + length);
+
+			if (flags == Frames.FILE_CHUNK) {
+				Frames.Frame file = chunkReceived(correlationId,
+						ByteBuffer.wrap(readBuffer.array(), readBuffer.arrayOffset() + start, length));
+				if (file != null) {
+					listener.frameReceived(this, file);
+				}
+				continue;
+			}
+
+			try {
+				if (flags == Frames.FRAGMENT) {
+					Frames.Frame message = fragmentReceived(correlationId,
+							ByteBuffer.wrap(readBuffer.array(), readBuffer.arrayOffset() + start, length));
+					Frames.Frame frame = message != null ? messageReceived(message) : null;
+					if (frame != null) {
+						listener.frameReceived(this, frame);
+					}
+					continue;
+				}
+				Object raw = frameCodec.decode(flags, readBuffer.array(), readBuffer.arrayOffset() + start, length);
+				Frames.Frame frame = messageReceived(new Frames.Frame(correlationId, raw));
+				if (frame != null) {
+					listener.frameReceived(this, frame);
+				}
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			}
+		}
+		if (!decrypted && opener != null && readBuffer.hasRemaining()) {
+			// Received right after the frame switching to decryption
+			if (sealedIn.remaining() < readBuffer.remaining()) {
+				sealedIn = ByteBuffer.allocate(readBuffer.remaining() + SessionCipher.MAX_SEALED_RECORD);
+			}
+			sealedIn.put(readBuffer);
+		}
+		readBuffer.compact();
+	}
+
+	private void flush() throws IOException {
+		if (closed.get()) {
+			return;
+		}
+		if (reading) {
+			// Called while the received frames are processed, do not write (or close)
+			// before they are
+			flushDeferred = true;
+			return;
+		}
+		if (tls != null) {
+			if (!tls.flush()) {
+				setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			if (tls.hasBufferedInput() && !readScheduled) {
+				// Unwrapped after continuing the handshake, but the selector will not
+				// report it as readable
+				readScheduled = true;
+				eventLoop.schedule(readTask, 0);
+			}
+		}
+		if (sealing != null && !sealing.drain()) {
+			setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+
+		int count;
+		while ((count = nextFrames(gather)) > 0) {
+			// Write as many queued frames as possible with a single system call
+			target().write(gather, 0, count);
+			framesWritten();
+			if (gather[count - 1].hasRemaining()) {
+				// Socket buffer full, continue when the channel becomes writable
+				setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+
+		ChunkedTransfer transfer = nextTransfer();
+		if (transfer != null) {
+			// Files are copied from the file system to the socket without the heap,
+			// unless they are to be encrypted
+			if (transfer.writeChunk(target())) {
+				chunkWritten(transfer);
+			}
+			// One chunk at a time, so the other connections of the event loop are served meanwhile
+			setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		Arrays.fill(gather, null);
+		if (sealing != null && !sealing.drain()) {
+			setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		setInterest(SelectionKey.OP_READ);
+
+		if (closeWhenFlushed) {
+			close();
+		}
+	}
+
+	/**
+	 * @return The channel to write frames to, encrypting them if a session key
+	 *         has been agreed
+	 */
+	private GatheringByteChannel target() {
+		return sealing != null ? sealing : transport();
+	}
+
+	/**
+	 * @return The channel to exchange bytes with the peer through, the TLS
+	 *         session in secure mode
+	 */
+	private GatheringByteChannel transport() {
+		return tls != null ? tls : channel;
+	}
+
+	private void setInterest(int ops) {
+		if (key != null && key.isValid() && key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				transport().close();
+			} catch (IOException e) {
+			}
+			clearQueue();
+			releaseFiles();
+			frameCodec.release();
+			listener.connectionClosed(this);
+		}
+	}
+
+	/**
+	 * Encrypts the bytes written into records and writes them to the channel. At
+	 * most one record waits for the channel to accept it; until it has been
+	 * written, no further bytes are accepted, so the callers handle a slow
+	 * receiver like a full socket buffer.
+	 */
+	private final class SealingChannel implements GatheringByteChannel {
+
+		private final SessionCipher cipher;
+		private final ByteBuffer plain = ByteBuffer.allocate(SessionCipher.MAX_RECORD);
+		private final ByteBuffer sealed = ByteBuffer.allocate(SessionCipher.MAX_SEALED_RECORD);
+
+		SealingChannel(SessionCipher cipher) {
+			this.cipher = cipher;
+			sealed.flip();
+		}
+
+		/**
+		 * Writes the record waiting for the channel
+		 *
+		 * @return true, if no record is waiting anymore
+		 */
+		boolean drain() throws IOException {
+			while (sealed.hasRemaining()) {
+				if (transport().write(sealed) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long consumed = 0;
+			while (drain()) {
+				plain.clear();
+				for (int i = offset; i < offset + length && plain.hasRemaining(); i++) {
+					ByteBuffer src = srcs[i];
+					int n = Math.min(src.remaining(), plain.remaining());
+					if (n > 0) {
+						ByteBuffer part = src.duplicate();
+						part.limit(part.position() + n);
+						plain.put(part);
+						src.position(src.position() + n);
+					}
+				}
+				if (plain.position() == 0) {
+					break;
+				}
+				plain.flip();
+				consumed += plain.remaining();
+				sealed.clear();
+				cipher.seal(plain, sealed);
+				sealed.flip();
+			}
+			return consumed;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			transport().close();
+		}
+
+	}
+
+	/**
+	 * Receives the messages and events of a <code>ChannelConnection</code>. All
+	 * methods are called on the connection's event loop thread and must not
+	 * block.
+	 */
+	interface Listener {
+
+		/**
+		 * Called when a complete frame has been received
+		 *
+		 * @param connection
+		 *            The connection the frame was received on
+		 * @param frame
+		 *            The frame containing the deserialized message
+		 */
+		void frameReceived(ChannelConnection connection, Frames.Frame frame);
+
+		/**
+		 * Called once when the connection has been closed
+		 *
+		 * @param connection
+		 *            The closed connection
+		 */
+		void connectionClosed(ChannelConnection connection);
+
+	}
+
+}
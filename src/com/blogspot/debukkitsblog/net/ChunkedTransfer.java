@@ -0,0 +1,97 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Something written to a connection in several frames, e.g. a file or a
+ * fragmented message. It is queued as a single entry, and every time it
+ * reaches the head of the queue, one chunk frame is written and the rest is
+ * queued again behind the frames sent meanwhile. Hence a large transfer never
+ * delays other messages by more than one chunk.<br>
+ * All methods except <code>fail()</code> must only be called by the thread
+ * writing the frames of the connection.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+abstract class ChunkedTransfer {
+
+	/**
+	 * The header of the chunk frame being written
+	 */
+	protected final ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_LENGTH);
+
+	ChunkedTransfer() {
+		header.limit(0);
+	}
+
+	/**
+	 * Writes the next chunk frame, or continues writing the current one
+	 *
+	 * @param target
+	 *            The channel to write to
+	 * @return true, if the chunk has been written completely; false, if the
+	 *         channel did not accept all bytes and the call has to be repeated
+	 *         once it does
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	abstract boolean writeChunk(WritableByteChannel target) throws IOException;
+
+	/**
+	 * @return true, if all chunks have been written
+	 */
+	abstract boolean isDone();
+
+	/**
+	 * Called after a chunk frame has been written completely
+	 *
+	 * @return The number of bytes of the heap released by writing the chunk
+	 */
+	abstract int chunkWritten();
+
+	/**
+	 * @return The number of bytes held in the heap until they have been written
+	 */
+	abstract int bufferedBytes();
+
+	/**
+	 * Gives up the transfer, e.g. because the connection has been closed. May
+	 * be called by any thread.
+	 *
+	 * @param cause
+	 *            The reason the transfer failed
+	 */
+	abstract void fail(Throwable cause);
+
+	/**
+	 * Fills in the header of the next chunk frame
+	 *
+	 * @param length
+	 *            The length of the chunk's payload
+	 * @param id
+	 *            The ID of the transfer, stored as correlation ID
+	 * @param flags
+	 *            The flags byte of the chunk frame
+	 */
+	protected void startChunk(int length, int id, int flags) {
+		header.clear();
+		header.putInt(length).putInt(id).put((byte) flags);
+		header.flip();
+	}
+
+	/**
+	 * @return true, if the header of the current chunk frame has been written
+	 */
+	protected boolean writeHeader(WritableByteChannel target) throws IOException {
+		while (header.hasRemaining()) {
+			if (target.write(header) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
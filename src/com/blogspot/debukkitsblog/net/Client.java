@@ -1,22 +1,43 @@
 package com.blogspot.debukkitsblog.net;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.AlreadyConnectedException;
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLContext;
+
+import com.blogspot.debukkitsblog.crypt.DHKeyFactory;
 
 /**
  * A very simple Client class for Java network applications<br>
  * originally created on March 9, 2016 in Horstmar, Germany
  * 
  * @author Leonard Bienbeck
- * @version 2.3.5
+ * @version 2.4.0
  */
 public class Client {
 
@@ -24,17 +45,45 @@ public class Client {
 	protected String group;
 
 	protected Socket loginSocket;
+	protected SocketConnection loginConnection;
 	protected InetSocketAddress address;
 	protected int timeout;
 
 	protected Thread listeningThread;
-	protected HashMap<String, Executable> idMethods = new HashMap<String, Executable>();
+	protected Map<String, Executable> idMethods = new ConcurrentHashMap<String, Executable>();
+	protected ExecutorService handlerExecutor;
+	protected AtomicLong rejectedHandlerCount = new AtomicLong();
+
+	protected Map<Integer, CompletableFuture<Datapackage>> pendingReplies = new ConcurrentHashMap<Integer, CompletableFuture<Datapackage>>();
+	protected AtomicInteger lastCorrelationId = new AtomicInteger();
 
 	protected int errorCount;
+	protected volatile ConnectionState state = ConnectionState.DISCONNECTED;
+	protected long reconnectInitialDelay = 1000;
+	protected long reconnectMaxDelay = 30000;
+	protected int maxReconnectAttempts;
+	protected int circuitBreakerThreshold;
+	protected long circuitBreakerOpenTime;
 
 	protected boolean autoKill;
 	protected boolean secureMode;
+	protected SSLContext sslContext;
 	protected boolean muted;
+	protected boolean virtualThreads;
+	protected Codec codec = Codec.SERIALIZATION;
+
+	protected int batchMessages = 1;
+	protected int batchBytes = 1;
+	protected long batchDelayMicros;
+
+	protected boolean compression;
+	protected int compressionThreshold = 512;
+	protected final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	protected boolean encryption;
+
+	protected File fileDirectory = new File(System.getProperty("java.io.tmpdir"));
+	protected long maxFileLength = 1024L * 1024 * 1024;
 
 	/**
 	 * Constructs a simple client with just a hostname and port to connect to
@@ -96,7 +145,8 @@ public class Client {
 	 *            The timeout after a connection attempt will be given up
 	 * @param autoKill
 	 *            Whether the program should exit after 30 failed connection
-	 *            attempts
+	 *            attempts in a row, see
+	 *            <code>setMaxReconnectAttempts(int)</code>
 	 * @param useSSL
 	 *            Whether a secure SSL connection should be used
 	 * @param id
@@ -113,11 +163,9 @@ public class Client {
 		this.address = new InetSocketAddress(hostname, port);
 		this.timeout = timeout;
 		this.autoKill = autoKill;
+		this.maxReconnectAttempts = autoKill ? 30 : 0;
 
-		if (secureMode = useSSL) {
-			System.setProperty("javax.net.ssl.trustStore", "ssc.store");
-			System.setProperty("javax.net.ssl.keyStorePassword", "SimpleServerClient");
-		}
+		this.secureMode = useSSL;
 	}
 
 	/**
@@ -143,6 +191,15 @@ public class Client {
 		return loginSocket != null && loginSocket.isConnected();
 	}
 
+	/**
+	 * Returns the state of the persistent connection to the server
+	 * 
+	 * @return The connection state
+	 */
+	public ConnectionState getConnectionState() {
+		return state;
+	}
+
 	/**
 	 * Checks the connectivity to the server
 	 * 
@@ -174,31 +231,425 @@ public class Client {
 		this.muted = muted;
 	}
 
+	/**
+	 * Sets the codec used to encode the Datapackages sent by this client. Default is
+	 * <code>Codec.SERIALIZATION</code>. Incoming Datapackages are always decoded
+	 * using the codec they were encoded with, so the codec can be chosen
+	 * independently on each side. Should be called before <code>start()</code>.
+	 * 
+	 * @param codec
+	 *            The codec to encode Datapackages with
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Enables batching of outgoing messages. Messages sent to the same server
+	 * shortly after each other are collected and written together, which saves
+	 * system calls and network packets if many small messages are sent. A batch
+	 * is written as soon as it contains <i>maxMessages</i> messages or
+	 * <i>maxBytes</i> bytes, or when its first message has been waiting for
+	 * <i>maxDelayMicros</i> microseconds. Batching is disabled by default, a
+	 * delay of 0 disables it again. <b>Must be called before <code>start()</code></b>.
+	 * 
+	 * @param maxMessages
+	 *            The number of messages completing a batch
+	 * @param maxBytes
+	 *            The number of bytes completing a batch
+	 * @param maxDelayMicros
+	 *            The maximum time a message waits for further messages, in
+	 *            microseconds
+	 */
+	public void setWriteBatching(int maxMessages, int maxBytes, long maxDelayMicros) {
+		if (maxMessages < 1 || maxBytes < 1 || maxDelayMicros < 0) {
+			throw new IllegalArgumentException("Batch limits must be positive");
+		}
+		this.batchMessages = maxMessages;
+		this.batchBytes = maxBytes;
+		this.batchDelayMicros = maxDelayMicros;
+	}
+
+	/**
+	 * Enables or disables compression. If enabled, compression is offered to
+	 * the server when logging in, and used for the connection if the server has
+	 * enabled it, too. Messages are compressed if they reach the compression
+	 * threshold. The compressor of the connection remembers the messages sent
+	 * before, so repeated similar messages compress well. <b>Must be called
+	 * before <code>start()</code></b>.
+	 * 
+	 * @param compression
+	 *            true if messages should be compressed
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets the minimum size of an encoded message to be compressed. Default is
+	 * 512 bytes. <b>Must be called before <code>start()</code></b>.
+	 * 
+	 * @param compressionThreshold
+	 *            The minimum size in bytes
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Enables or disables encryption. If enabled, the client agrees on a session
+	 * key with the server using a Diffie-Hellman key exchange when logging in,
+	 * and everything sent using the connection afterwards is encrypted and
+	 * authenticated using AES-GCM. The login fails if the server has not enabled
+	 * encryption, too. Messages are not sent without logging in anymore, since
+	 * they would not be encrypted.<br>
+	 * The key exchange does not prove the identity of the server, so use SSL if
+	 * the client must not be fooled by a man in the middle. <b>Must be called
+	 * before <code>start()</code></b>.
+	 * 
+	 * @param encryption
+	 *            true if the connection should be encrypted
+	 */
+	public void setEncryption(boolean encryption) {
+		this.encryption = encryption;
+	}
+
+	/**
+	 * Sets the <code>SSLContext</code> providing the certificates trusted if SSL
+	 * is used. By default, the certificates are loaded from the key store
+	 * <i>ssc.store</i>. The context belongs to this client only, no system
+	 * properties are changed. It caches the TLS session agreed with the server,
+	 * so reconnecting and messages sent without logging in resume it with an
+	 * abbreviated handshake. <b>Must be called before <code>start()</code></b>.
+	 * 
+	 * @param sslContext
+	 *            The context to create the secure connections with
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Returns the counters describing how many bytes compression has saved and
+	 * how much time it has taken
+	 * 
+	 * @return The compression statistics of this client
+	 */
+	public CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
+
+	/**
+	 * Enables or disables virtual threads. Every handler is then executed on its
+	 * own virtual thread instead of the bounded <code>HandlerPool</code>, so
+	 * handlers may block, e.g. waiting for the replies of further requests,
+	 * without occupying platform threads. The messages to the server are written
+	 * by a virtual thread as well; the listening thread remains a platform
+	 * thread, keeping the application alive.<br>
+	 * Requires Java 21 or later. <b>Must be called before
+	 * <code>start()</code></b>.
+	 * 
+	 * @param virtualThreads
+	 *            true if virtual threads should be used
+	 * @throws UnsupportedOperationException
+	 *             If the running Java version does not support virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !Threads.isVirtualSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets how long the client waits before reconnecting after the connection
+	 * has failed or been lost. The client waits a random time between zero and
+	 * a maximum, which starts at <i>initialDelayMillis</i> and doubles with every
+	 * failed attempt in a row up to <i>maxDelayMillis</i>. The random wait
+	 * spreads the reconnects of many clients losing the same server. Default is
+	 * 1 second, up to 30 seconds.
+	 * 
+	 * @param initialDelayMillis
+	 *            The maximum wait before the first attempt, in milliseconds
+	 * @param maxDelayMillis
+	 *            The upper bound of the maximum wait, in milliseconds
+	 */
+	public void setReconnectBackoff(long initialDelayMillis, long maxDelayMillis) {
+		if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+			throw new IllegalArgumentException("Delays must be positive, the maximum at least the initial delay");
+		}
+		this.reconnectInitialDelay = initialDelayMillis;
+		this.reconnectMaxDelay = maxDelayMillis;
+	}
+
+	/**
+	 * Sets the number of failed connection attempts in a row after which the
+	 * client gives up reconnecting. The state then changes to
+	 * <code>ConnectionState.DISCONNECTED</code>, and the program exits if the
+	 * client has been constructed with <i>autoKill</i>. Default is 30 if
+	 * <i>autoKill</i> is set, unlimited otherwise.
+	 * 
+	 * @param maxReconnectAttempts
+	 *            The number of attempts, or 0 for unlimited attempts
+	 */
+	public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+		if (maxReconnectAttempts < 0) {
+			throw new IllegalArgumentException("Number of attempts may not be negative");
+		}
+		this.maxReconnectAttempts = maxReconnectAttempts;
+	}
+
+	/**
+	 * Enables the circuit breaker. After <i>failureThreshold</i> failed
+	 * connection attempts in a row, the circuit opens: the client waits
+	 * <i>openMillis</i> (plus up to half of it at random) before a single further
+	 * attempt, and requests fail immediately instead of trying to reach the
+	 * server. The circuit closes again as soon as an attempt succeeds. Disabled
+	 * by default.
+	 * 
+	 * @param failureThreshold
+	 *            The number of failed attempts in a row opening the circuit, or
+	 *            0 to disable the circuit breaker
+	 * @param openMillis
+	 *            The time the circuit stays open, in milliseconds
+	 */
+	public void setCircuitBreaker(int failureThreshold, long openMillis) {
+		if (failureThreshold < 0 || (failureThreshold > 0 && openMillis < 1)) {
+			throw new IllegalArgumentException("Threshold may not be negative, open time must be positive");
+		}
+		this.circuitBreakerThreshold = failureThreshold;
+		this.circuitBreakerOpenTime = openMillis;
+	}
+
+	/**
+	 * Sets the directory files sent by the server are stored in. Default is the
+	 * temporary directory of the system. <b>Must be called before
+	 * <code>start()</code></b>.
+	 * 
+	 * @param fileDirectory
+	 *            The directory to store received files in
+	 */
+	public void setFileDirectory(File fileDirectory) {
+		this.fileDirectory = fileDirectory;
+	}
+
+	/**
+	 * Sets the maximum length of a file sent by the server. The connection is
+	 * closed if the server sends a longer file. Default is 1 GB. <b>Must be
+	 * called before <code>start()</code></b>.
+	 * 
+	 * @param maxFileLength
+	 *            The maximum length of a received file in bytes
+	 */
+	public void setMaxFileLength(long maxFileLength) {
+		this.maxFileLength = maxFileLength;
+	}
+
+	/**
+	 * Sets the executor running the methods registered for incoming Datapackages.
+	 * By default, a bounded <code>HandlerPool</code> is used, so a burst of
+	 * messages does not create a thread per message. The executor must not run
+	 * handlers on the calling thread, which receives the Datapackages. <b>Must be called before <code>start()</code></b>.
+	 * 
+	 * @param handlerExecutor
+	 *            The executor to run handlers with
+	 */
+	public void setHandlerExecutor(ExecutorService handlerExecutor) {
+		this.handlerExecutor = handlerExecutor;
+	}
+
+	/**
+	 * Returns the executor running the methods registered for incoming
+	 * Datapackages
+	 * 
+	 * @return The executor running handlers
+	 */
+	public ExecutorService getHandlerExecutor() {
+		return handlerExecutor;
+	}
+
+	/**
+	 * Returns the number of received Datapackages waiting for their handler to be
+	 * executed
+	 * 
+	 * @return The number of handlers waiting, or -1 if the executor does not
+	 *         provide this information
+	 */
+	public int getHandlerQueueDepth() {
+		if (handlerExecutor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) handlerExecutor).getQueue().size();
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of handlers rejected by the executor, because it was
+	 * saturated
+	 * 
+	 * @return The number of handlers rejected
+	 */
+	public long getRejectedHandlerCount() {
+		if (handlerExecutor instanceof HandlerPool) {
+			// Counts the handlers it rejected with an exception as well
+			return ((HandlerPool) handlerExecutor).getRejectedCount();
+		}
+		return rejectedHandlerCount.get();
+	}
+
 	/**
 	 * Starts the client. This will cause a connection attempt, a login on the
 	 * server and the start of a new listening thread (both to receive messages and
 	 * broadcasts from the server)
 	 */
 	public void start() {
-		login();
+		if (handlerExecutor == null) {
+			handlerExecutor = virtualThreads ? Threads.newVirtualExecutor("Client-Handler")
+					: new HandlerPool("Client-Handler");
+		}
+		connect();
 		startListening();
 	}
 
 	/**
-	 * Called to repair the connection if it is lost
+	 * Called to repair the connection if it is lost. Closes the connection, the
+	 * listening thread then reconnects after the backoff, see
+	 * <code>setReconnectBackoff(long, long)</code>.
 	 */
 	protected void repairConnection() {
 		onLog("[Client-Connection-Repair] Repairing connection...");
-		if (loginSocket != null) {
+		closeConnection();
+	}
+
+	/**
+	 * Closes the persistent connection to the server, if any
+	 */
+	protected void closeConnection() {
+		Socket socket = loginSocket;
+		SocketConnection connection = loginConnection;
+		loginSocket = null;
+		loginConnection = null;
+		if (connection != null) {
+			connection.close();
+		} else if (socket != null) {
 			try {
-				loginSocket.close();
+				socket.close();
 			} catch (IOException e) {
 			}
-			loginSocket = null;
 		}
+	}
 
+	/**
+	 * Makes a single attempt to connect and log in
+	 * 
+	 * @return true, if the client is logged in
+	 */
+	protected boolean connect() {
+		setState(ConnectionState.CONNECTING);
 		login();
-		startListening();
+		if (loginConnection != null) {
+			errorCount = 0;
+			setState(ConnectionState.CONNECTED);
+			return true;
+		}
+		errorCount++;
+		return false;
+	}
+
+	/**
+	 * Waits and reconnects until an attempt succeeds or the maximum number of
+	 * attempts has failed. Called on the listening thread.
+	 * 
+	 * @return true, if the client is logged in again, false if it has given up
+	 */
+	protected boolean reconnect() {
+		while (maxReconnectAttempts == 0 || errorCount < maxReconnectAttempts) {
+			long delay;
+			if (circuitBreakerThreshold > 0 && errorCount >= circuitBreakerThreshold) {
+				setState(ConnectionState.CIRCUIT_OPEN);
+				delay = circuitBreakerOpenTime + ThreadLocalRandom.current().nextLong(circuitBreakerOpenTime / 2 + 1);
+			} else {
+				setState(ConnectionState.BACKING_OFF);
+				// Zufaellige Wartezeit, damit nicht alle Clients gleichzeitig zurueckkehren
+				long maxDelay = reconnectInitialDelay << Math.min(errorCount, 30);
+				if (maxDelay <= 0 || maxDelay > reconnectMaxDelay) {
+					maxDelay = reconnectMaxDelay;
+				}
+				delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+			}
+			onLog("[Client] Reconnecting in " + delay + " ms...");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (connect()) {
+				return true;
+			}
+		}
+
+		setState(ConnectionState.DISCONNECTED);
+		if (autoKill) {
+			onLogError("Server dauerhaft nicht erreichbar, beende.");
+			System.exit(0);
+		}
+		onLogError("[Client] Server unreachable, giving up.");
+		return false;
+	}
+
+	/**
+	 * Changes the connection state and notifies <code>onStateChanged</code>
+	 * 
+	 * @param newState
+	 *            The new state
+	 */
+	private void setState(ConnectionState newState) {
+		ConnectionState oldState = state;
+		if (oldState != newState) {
+			state = newState;
+			onStateChanged(oldState, newState);
+		}
+	}
+
+	/**
+	 * Opens a connection to the server, using SSL in secure mode
+	 *
+	 * @return The connected socket
+	 * @throws IOException
+	 *             If the server cannot be reached within the timeout
+	 */
+	private Socket openSocket() throws IOException {
+		Socket socket = secureMode ? sslContext().getSocketFactory().createSocket() : new Socket();
+		try {
+			// The handshake and small requests must not wait for delayed acknowledgements
+			socket.setTcpNoDelay(true);
+			socket.connect(address, timeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * @return The <code>SSLContext</code> set, or the one using the default key
+	 *         store created on first use. If the key store cannot be loaded,
+	 *         the context configured by the system properties is used.
+	 */
+	private synchronized SSLContext sslContext() {
+		if (sslContext == null) {
+			try {
+				sslContext = TlsSession.createContext(TlsSession.DEFAULT_STORE, TlsSession.DEFAULT_STORE_PASSWORD,
+						false);
+			} catch (Exception e) {
+				onLogError("[Client] Error loading key store " + TlsSession.DEFAULT_STORE + ": " + e.getMessage());
+				try {
+					sslContext = SSLContext.getDefault();
+				} catch (NoSuchAlgorithmException e1) {
+					throw new IllegalStateException("SSL is not available", e1);
+				}
+			}
+		}
+		return sslContext;
 	}
 
 	/**
@@ -206,6 +657,10 @@ public class Client {
 	 * later
 	 */
 	protected void login() {
+		// The connection is published once logged in, so no message is sent before the login
+		Socket socket = null;
+		SocketConnection connection;
+
 		// Verbindung herstellen
 		try {
 			onLog("[Client] Connecting" + (secureMode ? " using SSL..." : "..."));
@@ -213,31 +668,122 @@ public class Client {
 				throw new AlreadyConnectedException();
 			}
 
-			if (secureMode) {
-				loginSocket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(address.getAddress(),
-						address.getPort());
-			} else {
-				loginSocket = new Socket();
-				loginSocket.connect(this.address, this.timeout);
-			}
+			socket = openSocket();
 
-			onLog("[Client] Connected to " + loginSocket.getRemoteSocketAddress());
+			connection = new SocketConnection(socket);
+			connection.receiveFiles(fileDirectory, maxFileLength, new FileProgressListener() {
+				@Override
+				public void progressed(String identifier, long transferred, long length) {
+					onFileProgress(identifier, transferred, length);
+				}
+			});
+			if (batchDelayMicros > 0) {
+				connection.setBatching(batchMessages, batchBytes, TimeUnit.MICROSECONDS.toNanos(batchDelayMicros));
+			}
+			onLog("[Client] Connected to " + socket.getRemoteSocketAddress());
 		} catch (IOException ex) {
-			ex.printStackTrace();
+			onLogError("[Client] Connection failed: " + ex.getMessage());
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
 			onConnectionProblem();
+			return;
 		}
 
 		// Einloggen
 		try {
 			onLog("[Client] Logging in...");
-			ObjectOutputStream out = new ObjectOutputStream(loginSocket.getOutputStream());
-			Datapackage loginPackage = new Datapackage("_INTERNAL_LOGIN_", id, group);
+			List<Object> login = new ArrayList<Object>();
+			login.add(id);
+			login.add(group);
+			if (compression) {
+				login.add(Frames.COMPRESSION_DEFLATE);
+			}
+			DHKeyFactory exchange = null;
+			if (encryption) {
+				exchange = new DHKeyFactory(SessionCipher.GROUP);
+				login.add(Frames.ENCRYPTION_DH_AES_GCM);
+				login.add(exchange.getPublicKey().toByteArray());
+			}
+			Datapackage loginPackage = new Datapackage("_INTERNAL_LOGIN_", login.toArray());
 			loginPackage.sign(id, group);
-			out.writeObject(loginPackage);
+			// Written directly, the writer thread has not been started yet
+			connection.send(loginPackage, Frames.NO_CORRELATION, codec);
+			if (exchange != null) {
+				agreeSessionKey(connection, exchange);
+			}
+
+			// Sending only queues the messages, a writer thread transmits them, so
+			// asynchronous requests never block the caller
+			connection.startWriting("Client-Writer", virtualThreads);
+			loginSocket = socket;
+			loginConnection = connection;
 			onLog("[Client] Logged in.");
 			onReconnect();
 		} catch (IOException ex) {
-			onLogError("[Client] Login failed.");
+			onLogError("[Client] Login failed: " + ex.getMessage());
+			connection.close();
+		}
+	}
+
+	/**
+	 * Waits for the server to acknowledge the login and completes the key
+	 * exchange. Everything sent and received afterwards is encrypted.
+	 * 
+	 * @param connection
+	 *            The connection the login has been sent with
+	 * @param exchange
+	 *            The key exchange whose public key has been sent with the login
+	 * @throws IOException
+	 *             If the server does not acknowledge the login in time, has not
+	 *             enabled encryption or the key exchange fails
+	 */
+	private void agreeSessionKey(SocketConnection connection, DHKeyFactory exchange) throws IOException {
+		Frames.Frame frame;
+		connection.setReadTimeout(timeout);
+		try {
+			frame = connection.read();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Login not acknowledged", e);
+		} finally {
+			connection.setReadTimeout(0);
+		}
+		if (!(frame.message instanceof Datapackage)
+				|| !((Datapackage) frame.message).id().equals("_INTERNAL_LOGIN_ACK_")) {
+			throw new IOException("Login not acknowledged");
+		}
+
+		Datapackage ack = (Datapackage) frame.message;
+		int accepted = ack.indexOf(Frames.ENCRYPTION_DH_AES_GCM);
+		if (accepted < 0 || accepted + 1 >= ack.size() || !(ack.get(accepted + 1) instanceof byte[])) {
+			throw new IOException("Server does not support encryption");
+		}
+		try {
+			exchange.setRemotePublicKey(new BigInteger((byte[]) ack.get(accepted + 1)));
+			connection.decryptReceived(SessionCipher.forReceiving(exchange, true));
+			connection.encryptSent(SessionCipher.forSending(exchange, true));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Key exchange failed", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Key exchange failed", e);
+		}
+		enableCapabilities(connection, ack);
+	}
+
+	/**
+	 * Enables the capabilities the server has acknowledged, except encryption
+	 * 
+	 * @param connection
+	 *            The connection the login has been sent with
+	 * @param ack
+	 *            The acknowledgement of the login
+	 */
+	private void enableCapabilities(SocketConnection connection, Datapackage ack) {
+		if (compression && ack.contains(Frames.COMPRESSION_DEFLATE)) {
+			connection.frameCodec.enableCompression(compressionThreshold, compressionStatistics);
 		}
 	}
 
@@ -259,59 +805,81 @@ public class Client {
 
 				// Staendig wiederholen
 				while (true) {
-					try {
-						// Bei fehlerhafter Verbindung, diese reparieren
-						if (loginSocket != null && !loginSocket.isConnected()) {
-							while (!loginSocket.isConnected()) {
-								repairConnection();
-								if (loginSocket.isConnected()) {
-									break;
-								}
-
-								Thread.sleep(5000);
-								repairConnection();
-							}
+					// Bei fehlerhafter Verbindung, diese reparieren
+					SocketConnection connection = loginConnection;
+					if (connection == null) {
+						if (!reconnect()) {
+							return;
 						}
+						connection = loginConnection;
+					}
 
+					try {
 						onConnectionGood();
 
 						// Auf eingehende Nachricht warten und diese bei Eintreffen lesen
-						ObjectInputStream ois = new ObjectInputStream(loginSocket.getInputStream());
-						Object raw = ois.readObject();
+						Frames.Frame frame = connection.read();
+
+						// Antworten an den wartenden Sender weiterreichen
+						if (frame.correlationId != Frames.NO_CORRELATION && frame.message instanceof Datapackage) {
+							CompletableFuture<Datapackage> pending = pendingReplies.remove(frame.correlationId);
+							if (pending != null) {
+								pending.complete((Datapackage) frame.message);
+								continue;
+							}
+						}
 
 						// Nachricht auswerten
-						if (raw instanceof Datapackage) {
-							final Datapackage msg = (Datapackage) raw;
+						if (frame.message instanceof Datapackage) {
+							final Datapackage msg = (Datapackage) frame.message;
+
+							// Von Server und Client unterstuetzte Faehigkeiten aktivieren
+							if (msg.id().equals("_INTERNAL_LOGIN_ACK_")) {
+								enableCapabilities(connection, msg);
+								continue;
+							}
 
-							for (final String current : idMethods.keySet()) {
-								if (msg.id().equalsIgnoreCase(current)) {
-									onLog("[Client] Message received. Executing method for '" + msg.id() + "'...");
-									new Thread(new Runnable() {
+							// Dem Server zeigen, dass der Client noch lebt
+							if (msg.id().equals("_INTERNAL_PING_")) {
+								Datapackage pong = new Datapackage("_INTERNAL_PONG_");
+								pong.setPriority(Priority.CONTROL);
+								write(pong, Frames.NO_CORRELATION);
+								continue;
+							}
+
+							boolean delivered = false;
+							final Executable executable = idMethods.get(Identifiers.normalize(msg.id()));
+							if (executable != null) {
+								onLog("[Client] Message received. Executing method for '" + msg.id() + "'...");
+								try {
+									handlerExecutor.execute(new Runnable() {
 										public void run() {
-											idMethods.get(current).run(msg, loginSocket);
+											executable.run(msg, loginSocket);
 										}
-									}).start();
-									break;
+									});
+									delivered = true;
+								} catch (RejectedExecutionException e) {
+									rejectedHandlerCount.incrementAndGet();
+									onLogError("[Client] Handler executor saturated, dropping message '" + msg.id() + "'");
 								}
 							}
+							// Empfangene Datei loeschen, wenn sie niemand entgegennimmt
+							if (!delivered && frame.file != null) {
+								FileReceiver.discard(frame.file);
+							}
 
 						}
 
 					} catch (Exception ex) {
-						ex.printStackTrace();
+						onLogError("[Client] Connection lost: " + ex);
+						if (loginConnection == connection) {
+							closeConnection();
+						}
+						failPendingReplies(ex);
 						onConnectionProblem();
 						onLogError("Server offline?");
-						if ((++errorCount > 30) && autoKill) {
-							onLogError("Server dauerhaft nicht erreichbar, beende.");
-							System.exit(0);
-						} else {
-							repairConnection();
-						}
 					}
 
-					// Bis hieher fehlerfrei? Dann errorCount auf Null setzen:
-					errorCount = 0;
-
 				} // while true
 
 			}// run
@@ -322,40 +890,110 @@ public class Client {
 	}
 
 	/**
-	 * Sends a message to the server using a brand new socket and returns the
-	 * server's response
+	 * Writes a message to the persistent connection to the server
+	 * 
+	 * @param message
+	 *            The message to write
+	 * @param correlationId
+	 *            The correlation ID of the request, or
+	 *            <code>Frames.NO_CORRELATION</code>
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	protected void write(Datapackage message, int correlationId) throws IOException {
+		SocketConnection connection = loginConnection;
+		if (connection == null) {
+			throw new IOException("Not connected");
+		}
+		connection.send(message, correlationId, codec);
+	}
+
+	/**
+	 * Fails all requests still waiting for a reply, e.g. because the connection
+	 * has been lost
+	 * 
+	 * @param cause
+	 *            The reason why the replies will never arrive
+	 */
+	protected void failPendingReplies(Throwable cause) {
+		for (Integer correlationId : pendingReplies.keySet()) {
+			CompletableFuture<Datapackage> pending = pendingReplies.remove(correlationId);
+			if (pending != null) {
+				pending.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * @return A new correlation ID for a request, never
+	 *         <code>Frames.NO_CORRELATION</code>
+	 */
+	protected int nextCorrelationId() {
+		int correlationId;
+		do {
+			correlationId = lastCorrelationId.incrementAndGet();
+		} while (correlationId == Frames.NO_CORRELATION);
+		return correlationId;
+	}
+
+	/**
+	 * Sends a message to the server and returns the server's response. If the
+	 * client has been started, the message is sent using the persistent
+	 * connection, so many requests of different threads can be in flight at the
+	 * same time. Otherwise a brand new socket is used.
 	 * 
 	 * @param message
 	 *            The message to send to the server
 	 * @param timeout
-	 *            The timeout after a connection attempt will be given up
+	 *            The time in milliseconds to wait for the server's response on the
+	 *            persistent connection, or after which a connection attempt of a
+	 *            brand new socket will be given up. 0 waits as long as the
+	 *            connection is alive.
 	 * @return The server's response. The identifier of this Datapackage should be
-	 *         "REPLY" by default, the rest is custom data.
+	 *         "REPLY" by default, the rest is custom data. Null if the message
+	 *         could not be sent or the response did not arrive in time.
 	 */
 	public Datapackage sendMessage(Datapackage message, int timeout) {
-		try {
-			Socket tempSocket;
-			if (secureMode) {
-				tempSocket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(address.getAddress(),
-						address.getPort());
-			} else {
-				tempSocket = new Socket();
-				tempSocket.connect(address, timeout);
+		if (state == ConnectionState.CIRCUIT_OPEN) {
+			onLogError("[Client] Server unreachable, not sending message '" + message.id() + "'");
+			return null;
+		}
+		if (isLoggedIn()) {
+			try {
+				// The pending reply is forgotten when it times out
+				return sendMessageAsync(message, timeout, TimeUnit.MILLISECONDS).get();
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof TimeoutException) {
+					onLogError("[Client] No reply to message '" + message.id() + "' within " + timeout + " ms");
+				} else {
+					onLogError("[Client] Error while sending message:");
+					ex.printStackTrace();
+				}
+				return null;
+			} catch (Exception ex) {
+				onLogError("[Client] Error while sending message:");
+				ex.printStackTrace();
+				return null;
 			}
+		}
+
+		if (encryption) {
+			onLogError("[Client] Not logged in, not sending message '" + message.id() + "' unencrypted");
+			return null;
+		}
+
+		try {
+			Socket tempSocket = openSocket();
 
-			ObjectOutputStream tempOOS = new ObjectOutputStream(tempSocket.getOutputStream());
 			message.sign(id, group);
-			tempOOS.writeObject(message);
+			Frames.write(tempSocket.getOutputStream(), message, Frames.NO_CORRELATION, codec);
 
-			ObjectInputStream tempOIS = new ObjectInputStream(tempSocket.getInputStream());
-			Object raw = tempOIS.readObject();
+			Frames.Frame frame = Frames.read(tempSocket.getInputStream());
 
-			tempOOS.close();
-			tempOIS.close();
 			tempSocket.close();
 
-			if (raw instanceof Datapackage) {
-				return (Datapackage) raw;
+			if (frame.message instanceof Datapackage) {
+				return (Datapackage) frame.message;
 			}
 		} catch (Exception ex) {
 			onLogError("[Client] Error while sending message:");
@@ -366,8 +1004,144 @@ public class Client {
 	}
 
 	/**
-	 * Sends a message to the server using a brand new socket and returns the
-	 * server's response
+	 * Sends a message to the server without waiting for the server's response.
+	 * The request is transmitted using the persistent connection, so a single
+	 * thread can keep any number of requests in flight; the replies are matched
+	 * to their requests regardless of the order they arrive in. Cancelling the
+	 * returned future discards the reply once it arrives.
+	 * 
+	 * @param message
+	 *            The message to send to the server
+	 * @return A future completed with the server's response. It is completed
+	 *         exceptionally if the client is not logged in, the message cannot be
+	 *         sent or the connection is lost before the response arrives.
+	 */
+	public CompletableFuture<Datapackage> sendMessageAsync(Datapackage message) {
+		return sendMessageAsync(message, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a message to the server without waiting for the server's response,
+	 * giving up if the response does not arrive in time. See
+	 * <code>sendMessageAsync(Datapackage message)</code>.
+	 * 
+	 * @param message
+	 *            The message to send to the server
+	 * @param timeout
+	 *            The time to wait for the response, or 0 to wait as long as the
+	 *            connection is alive
+	 * @param unit
+	 *            The unit of <i>timeout</i>
+	 * @return A future completed with the server's response, or exceptionally
+	 *         with a <code>TimeoutException</code> if the response does not arrive
+	 *         in time
+	 */
+	public CompletableFuture<Datapackage> sendMessageAsync(Datapackage message, long timeout, TimeUnit unit) {
+		final CompletableFuture<Datapackage> reply = new CompletableFuture<Datapackage>();
+		if (!isLoggedIn()) {
+			reply.completeExceptionally(new IOException("Not connected"));
+			return reply;
+		}
+
+		final int correlationId = nextCorrelationId();
+		pendingReplies.put(correlationId, reply);
+		final ScheduledFuture<?> timer = timeout > 0 ? ReplyTimeouts.SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reply.completeExceptionally(new TimeoutException("No reply within the timeout"));
+			}
+		}, timeout, unit) : null;
+		// Forget the request however it ends, including timeouts and cancellation
+		reply.whenComplete(new BiConsumer<Datapackage, Throwable>() {
+			@Override
+			public void accept(Datapackage response, Throwable failure) {
+				pendingReplies.remove(correlationId, reply);
+				if (timer != null) {
+					timer.cancel(false);
+				}
+			}
+		});
+
+		try {
+			message.sign(id, group);
+			write(message, correlationId);
+		} catch (IOException ex) {
+			reply.completeExceptionally(ex);
+		}
+		return reply;
+	}
+
+	/**
+	 * Sends a file to the server. See
+	 * <code>sendFile(String identifier, File file, FileProgressListener listener)</code>.
+	 * 
+	 * @param identifier
+	 *            The identifier of the Datapackage announcing the received file
+	 * @param file
+	 *            The file to send
+	 * @return A future completed once the file has been transmitted
+	 */
+	public CompletableFuture<Void> sendFile(String identifier, File file) {
+		return sendFile(identifier, file, null);
+	}
+
+	/**
+	 * Sends a file to the server using the persistent connection. The file is
+	 * transmitted chunk by chunk, so it is never read into memory completely,
+	 * and other messages are sent in between. The chunks are copied through a
+	 * buffer in the heap, as the client uses a blocking socket. The server stores
+	 * the file in its file directory and then executes the method registered for
+	 * <i>identifier</i> with a Datapackage containing the received
+	 * <code>java.io.File</code>, the original name of the file and its length.
+	 * 
+	 * @param identifier
+	 *            The identifier of the Datapackage announcing the received file
+	 * @param file
+	 *            The file to send
+	 * @param listener
+	 *            Notified after every chunk transmitted, or null
+	 * @return A future completed once the file has been transmitted, or
+	 *         exceptionally if the client is not logged in, the file cannot be
+	 *         read or the connection fails
+	 */
+	public CompletableFuture<Void> sendFile(String identifier, File file, FileProgressListener listener) {
+		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+		SocketConnection connection = loginConnection;
+		if (!isLoggedIn() || connection == null) {
+			failed.completeExceptionally(new IOException("Not connected"));
+			return failed;
+		}
+
+		FileTransfer transfer;
+		try {
+			transfer = new FileTransfer(connection.nextTransferId(), identifier, file, listener);
+		} catch (IOException ex) {
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+		try {
+			Datapackage offer = transfer.offer();
+			offer.sign(id, group);
+			connection.send(offer, Frames.NO_CORRELATION, codec);
+			connection.queueTransfer(transfer);
+		} catch (IOException ex) {
+			transfer.fail(ex);
+		}
+		return transfer.future();
+	}
+
+	/**
+	 * @return true, if the persistent connection is established and its replies
+	 *         are being received
+	 */
+	protected boolean isLoggedIn() {
+		Socket socket = loginSocket;
+		return socket != null && socket.isConnected() && !socket.isClosed() && listeningThread != null
+				&& listeningThread.isAlive();
+	}
+
+	/**
+	 * Sends a message to the server and returns the server's response
 	 * 
 	 * @param ID
 	 *            The ID of the message, allowing the server to decide what to do
@@ -382,13 +1156,14 @@ public class Client {
 	}
 
 	/**
-	 * Sends a message to the server using a brand new socket and returns the
-	 * server's response
+	 * Sends a message to the server and returns the server's response, waiting
+	 * for it no longer than the timeout of the client
 	 * 
 	 * @param message
 	 *            The message to send to the server
 	 * @return The server's response. The identifier of this Datapackage should be
-	 *         "REPLY" by default, the rest is custom data.
+	 *         "REPLY" by default, the rest is custom data. Null if it did not
+	 *         arrive in time.
 	 */
 	public Datapackage sendMessage(Datapackage message) {
 		return sendMessage(message, this.timeout);
@@ -396,7 +1171,8 @@ public class Client {
 
 	/**
 	 * Registers a method that will be executed if a message containing
-	 * <i>identifier</i> is received
+	 * <i>identifier</i> is received. Identifiers are not case-sensitive. Methods
+	 * can be registered at any time, even while messages are being received.
 	 * 
 	 * @param identifier
 	 *            The ID of the message to proccess
@@ -405,7 +1181,7 @@ public class Client {
 	 *            received
 	 */
 	public void registerMethod(String identifier, Executable executable) {
-		idMethods.put(identifier, executable);
+		idMethods.put(Identifiers.normalize(identifier), executable);
 	}
 
 	/**
@@ -434,6 +1210,35 @@ public class Client {
 		// Overwrite this method when extending this class
 	}
 
+	/**
+	 * Called whenever the state of the persistent connection changes, see
+	 * <code>ConnectionState</code>. Called on the thread connecting, usually the
+	 * listening thread, so this method must return quickly.
+	 * 
+	 * @param oldState
+	 *            The previous state
+	 * @param newState
+	 *            The current state
+	 */
+	public void onStateChanged(ConnectionState oldState, ConnectionState newState) {
+		// Overwrite this method when extending this class
+	}
+
+	/**
+	 * Called whenever a chunk of a file sent by the server has been received.
+	 * Called on the listening thread, so this method must return quickly.
+	 * 
+	 * @param identifier
+	 *            The identifier the file has been sent with
+	 * @param received
+	 *            The number of bytes received so far
+	 * @param length
+	 *            The length of the file
+	 */
+	public void onFileProgress(String identifier, long received, long length) {
+		// Overwrite this method when extending this class
+	}
+
 	/**
 	 * By default, this method is called whenever an output is to be made. If this
 	 * method is not overwritten, the output is passed to the system's default
@@ -464,4 +1269,26 @@ public class Client {
 			System.err.println(message);
 	}
 
+	/**
+	 * Completes the requests whose response has not arrived in time. Shared by all
+	 * clients and created when the first timeout is requested.
+	 */
+	private static final class ReplyTimeouts {
+
+		static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Client-ReplyTimeouts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		static {
+			// Most requests are answered in time, don't keep their timers around
+			SCHEDULER.setRemoveOnCancelPolicy(true);
+		}
+
+	}
+
 }
\ No newline at end of file
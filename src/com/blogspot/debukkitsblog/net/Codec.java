@@ -0,0 +1,105 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * The encodings available for transmitting Datapackages. The encoding is
+ * chosen by the sender using <code>setCodec(Codec codec)</code> of a
+ * <code>Server</code> or <code>Client</code> and stored in every frame, so the
+ * receiver always decodes a message correctly, regardless of its own choice.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public enum Codec {
+
+	/**
+	 * Java serialization of the whole Datapackage. Supports every serializable
+	 * payload, but every message carries the complete class descriptions of the
+	 * Datapackage and its elements.
+	 */
+	SERIALIZATION {
+		@Override
+		void encode(Datapackage message, OutputStream out) throws IOException {
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(message);
+			oos.flush();
+		}
+
+		@Override
+		Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+			return new ObjectInputStream(new ByteArrayInputStream(payload, offset, length)).readObject();
+		}
+	},
+
+	/**
+	 * A compact binary encoding. Strings, primitive wrappers, byte arrays,
+	 * ArrayLists and HashMaps are encoded natively, other payloads are embedded
+	 * using Java serialization. Considerably smaller and faster to encode and
+	 * decode than <code>SERIALIZATION</code> for typical messages.
+	 */
+	BINARY {
+		@Override
+		void encode(Datapackage message, OutputStream out) throws IOException {
+			BinaryCodec.encode(message, out);
+		}
+
+		@Override
+		Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+			return BinaryCodec.decode(payload, offset, length);
+		}
+	};
+
+	private static final Codec[] VALUES = values();
+
+	/**
+	 * Encodes a Datapackage
+	 *
+	 * @param message
+	 *            The Datapackage to encode
+	 * @param out
+	 *            The stream to write the encoded Datapackage to
+	 * @throws IOException
+	 *             If the Datapackage cannot be encoded
+	 */
+	abstract void encode(Datapackage message, OutputStream out) throws IOException;
+
+	/**
+	 * Decodes a message
+	 *
+	 * @param payload
+	 *            The array containing the encoded message
+	 * @param offset
+	 *            The position of the first byte
+	 * @param length
+	 *            The number of bytes
+	 * @return The decoded message
+	 * @throws IOException
+	 *             If the data is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message or an element is unknown
+	 */
+	abstract Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Returns the codec with the given ID as stored in a frame
+	 *
+	 * @param id
+	 *            The ID of the codec
+	 * @return The codec
+	 * @throws IOException
+	 *             If there is no codec with this ID
+	 */
+	static Codec forId(int id) throws IOException {
+		if (id < 0 || id >= VALUES.length) {
+			throw new StreamCorruptedException("Unknown codec: " + id);
+		}
+		return VALUES[id];
+	}
+
+}
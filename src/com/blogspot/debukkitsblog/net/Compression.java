@@ -0,0 +1,154 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of frame payloads. A compressed payload starts with the
+ * length of the uncompressed payload, followed by the Deflate data.<br>
+ * A compressor can either be used for a single payload, or keep its context
+ * across all payloads of a connection. In the latter case every payload is
+ * completed with a sync flush, so it can be decompressed as soon as it has
+ * been received, while similar payloads sent before still serve as dictionary.
+ * The receiver must then decompress the payloads with a single decompressor in
+ * the order they were compressed.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class Compression {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private Compression() {
+	}
+
+	/**
+	 * Compresses the payload of a frame
+	 *
+	 * @param frame
+	 *            The frame whose payload is to be compressed
+	 * @param deflater
+	 *            The compressor of the connection, or null to compress the
+	 *            payload on its own
+	 * @param statistics
+	 *            The statistics to record the compression in
+	 * @return A frame containing the compressed payload, its header still has to
+	 *         be filled in
+	 */
+	static Frames.FrameOutputStream deflate(Frames.FrameOutputStream frame, Deflater deflater,
+			CompressionStatistics statistics) {
+		long start = System.nanoTime();
+		ByteBuffer payload = frame.payload();
+		int length = payload.remaining();
+
+		Frames.FrameOutputStream out = new Frames.FrameOutputStream(length / 2 + 64);
+		out.write(length >>> 24);
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+
+		boolean stateless = deflater == null;
+		if (stateless) {
+			deflater = new Deflater();
+		}
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, length + 64)];
+		deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+		if (stateless) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+			deflater.end();
+		} else {
+			int n;
+			do {
+				n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+				out.write(chunk, 0, n);
+			} while (n == chunk.length);
+		}
+
+		statistics.compressed(length, out.payload().remaining(), System.nanoTime() - start);
+		return out;
+	}
+
+	/**
+	 * Decompresses a payload
+	 *
+	 * @param inflater
+	 *            The decompressor of the connection, or null if the payload has
+	 *            been compressed on its own
+	 * @param payload
+	 *            The array containing the compressed payload
+	 * @param offset
+	 *            The position of the first byte of the compressed payload
+	 * @param length
+	 *            The length of the compressed payload
+	 * @param statistics
+	 *            The statistics to record the decompression in, or null
+	 * @return The uncompressed payload
+	 * @throws StreamCorruptedException
+	 *             If the compressed data is corrupt
+	 */
+	static byte[] inflate(Inflater inflater, byte[] payload, int offset, int length,
+			CompressionStatistics statistics) throws StreamCorruptedException {
+		long start = System.nanoTime();
+		if (length < 4) {
+			throw new StreamCorruptedException("Truncated compressed payload");
+		}
+		int size = ((payload[offset] & 0xFF) << 24) | ((payload[offset + 1] & 0xFF) << 16)
+				| ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+
+		// Only payloads without connection state can belong to fragmented messages
+		boolean stateless = inflater == null;
+		if (size < 0 || size > (stateless ? Frames.MAX_MESSAGE_LENGTH : Frames.MAX_FRAME_LENGTH)) {
+			throw new StreamCorruptedException("Invalid uncompressed length: " + size);
+		}
+		if (stateless) {
+			inflater = new Inflater();
+		}
+		try {
+			// Grow the result as it is inflated instead of trusting the announced size
+			byte[] result = new byte[(int) Math.min(size, Math.max(64 * 1024, 8L * length))];
+			inflater.setInput(payload, offset + 4, length - 4);
+			int n = 0;
+			while (n < size) {
+				if (n == result.length) {
+					result = Arrays.copyOf(result, (int) Math.min(size, 2L * result.length));
+				}
+				int inflated = inflater.inflate(result, n, result.length - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("Truncated compressed payload");
+				}
+				n += inflated;
+			}
+			if (!stateless) {
+				// Consume the end of the sync flush, the next payload continues after it
+				byte[] rest = new byte[1];
+				while (inflater.getRemaining() > 0) {
+					if (inflater.inflate(rest) != 0) {
+						throw new StreamCorruptedException("Unexpected data after compressed payload");
+					}
+					if (inflater.needsInput() || inflater.finished()) {
+						break;
+					}
+				}
+			}
+			if (statistics != null) {
+				statistics.decompressed(System.nanoTime() - start);
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Corrupt compressed payload: " + e.getMessage());
+		} finally {
+			if (stateless) {
+				inflater.end();
+			}
+		}
+	}
+
+}
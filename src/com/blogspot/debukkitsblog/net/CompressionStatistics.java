@@ -0,0 +1,109 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the benefit and the cost of compressing the messages of
+ * a <code>Server</code> or <code>Client</code>, summed up over all of its
+ * connections. Use them to decide whether compression and its threshold pay
+ * off for your messages.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public class CompressionStatistics {
+
+	private final LongAdder compressedMessages = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionNanos = new LongAdder();
+	private final LongAdder decompressedMessages = new LongAdder();
+	private final LongAdder decompressionNanos = new LongAdder();
+
+	/**
+	 * Records the compression of a message
+	 *
+	 * @param uncompressed
+	 *            The size of the message before compression
+	 * @param compressed
+	 *            The size of the message after compression
+	 * @param nanos
+	 *            The time spent compressing
+	 */
+	void compressed(long uncompressed, long compressed, long nanos) {
+		compressedMessages.increment();
+		uncompressedBytes.add(uncompressed);
+		compressedBytes.add(compressed);
+		compressionNanos.add(nanos);
+	}
+
+	/**
+	 * Records the decompression of a message
+	 *
+	 * @param nanos
+	 *            The time spent decompressing
+	 */
+	void decompressed(long nanos) {
+		decompressedMessages.increment();
+		decompressionNanos.add(nanos);
+	}
+
+	/**
+	 * @return The number of messages sent compressed
+	 */
+	public long getCompressedMessages() {
+		return compressedMessages.sum();
+	}
+
+	/**
+	 * @return The size of the messages sent compressed, before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.sum();
+	}
+
+	/**
+	 * @return The size of the messages sent compressed, after compression
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * @return The number of bytes not transmitted thanks to compression. Negative
+	 *         if compression made the messages larger.
+	 */
+	public long getBytesSaved() {
+		return getUncompressedBytes() - getCompressedBytes();
+	}
+
+	/**
+	 * @return The time spent compressing messages, in nanoseconds
+	 */
+	public long getCompressionNanos() {
+		return compressionNanos.sum();
+	}
+
+	/**
+	 * @return The number of compressed messages received
+	 */
+	public long getDecompressedMessages() {
+		return decompressedMessages.sum();
+	}
+
+	/**
+	 * @return The time spent decompressing received messages, in nanoseconds
+	 */
+	public long getDecompressionNanos() {
+		return decompressionNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStatistics[compressed=" + getCompressedMessages() + " messages, "
+				+ getUncompressedBytes() + " -> " + getCompressedBytes() + " bytes in "
+				+ getCompressionNanos() / 1000000 + " ms, decompressed=" + getDecompressedMessages()
+				+ " messages in " + getDecompressionNanos() / 1000000 + " ms]";
+	}
+
+}
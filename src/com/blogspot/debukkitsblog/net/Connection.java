@@ -0,0 +1,1074 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection between a <code>Client</code> and a <code>Server</code>,
+ * independent of the transport used. Every connection owns a
+ * <code>FrameCodec</code> keeping the encoder and decoder state that spans the
+ * messages of the connection, and an outbound queue holding the frames waiting
+ * to be written. Sending a message only encodes and queues it, the frames are
+ * written by the I/O layer of the connection, so a sender never waits for a
+ * slow receiver.<br>
+ * The queue is unbounded unless watermarks have been set using
+ * <code>setBackpressure</code>. Files are queued as a whole and transmitted
+ * chunk by chunk straight from the file system, see
+ * <code>FileTransfer</code>. On persistent connections, frames larger than
+ * <code>Frames.MAX_FRAGMENT_LENGTH</code> are transmitted the same way, see
+ * <code>FragmentedMessage</code>, so a large message does not delay the
+ * messages sent after it. The fragmented messages of a lane are sent one
+ * after the other, so the receiver reassembles at most one per lane at a
+ * time. So are files.<br>
+ * Every <code>Priority</code> has its own queue, called lane. The writing
+ * thread takes turns between the lanes using deficit round robin: in its turn,
+ * a lane may send as many bytes as its weight allows, so a frame waits at most
+ * for one turn of the lower priorities. Frames of different lanes overtake
+ * each other, which is why <code>FrameCodec</code> keeps separate state per
+ * lane.<br>
+ * Senders may wait while holding the locks of a connection, so they are
+ * <code>ReentrantLock</code>s rather than monitors, which would pin a virtual
+ * thread to its carrier thread while it waits.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+abstract class Connection {
+
+	/**
+	 * The number of bytes taken from the queue for a single write. Frames are
+	 * taken until this limit is reached, so small frames are written together
+	 * while large frames remain subject to the backpressure policy until they
+	 * are due.
+	 */
+	private static final int MAX_BYTES_IN_FLIGHT = 64 * 1024;
+
+	/**
+	 * The number of bytes a lane of weight 1 may send per turn
+	 */
+	private static final int QUANTUM = 16 * 1024;
+
+	/**
+	 * The number of bytes a queued transfer sends per turn
+	 */
+	private static final int CHUNK_COST = Frames.HEADER_LENGTH + Frames.MAX_FRAGMENT_LENGTH;
+
+	/**
+	 * The maximum number of fragmented messages reassembled at once. A sender
+	 * sends one fragmented message per lane at a time.
+	 */
+	private static final int MAX_REASSEMBLIES = Priority.values().length;
+
+	/**
+	 * The maximum number of bytes allocated for reassembling messages at once
+	 */
+	private static final long MAX_REASSEMBLY_BYTES = Frames.MAX_MESSAGE_LENGTH;
+
+	protected final FrameCodec frameCodec = new FrameCodec();
+
+	// All fields of the queue are guarded by the queue lock
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final Condition drained = queueLock.newCondition();
+	private final Lane[] lanes = Lane.forPriorities();
+	private int turn;
+	private long queuedBytes;
+	private boolean throttled;
+
+	// The lane of a queued frame that must be written before any other lane's
+	private Lane barrier;
+
+	// The frames being written, only accessed by the writing thread
+	private final ArrayDeque<Outbound> inFlight = new ArrayDeque<Outbound>();
+	private long bytesInFlight;
+	private boolean barrierInFlight;
+
+	private volatile BackpressurePolicy policy = BackpressurePolicy.BLOCK;
+	private volatile long lowWatermark = Long.MAX_VALUE;
+	private volatile long highWatermark = Long.MAX_VALUE;
+	private volatile ThrottleListener throttleListener;
+
+	private volatile int batchMessages = 1;
+	private volatile long batchBytes = 1;
+	private volatile long batchDelayNanos;
+
+	private volatile boolean persistent;
+	private volatile long lastReceived = System.nanoTime();
+
+	private final AtomicInteger lastTransferId = new AtomicInteger();
+	private volatile FileReceiver fileReceiver;
+
+	// The fragmented messages being received, only accessed by the reading thread
+	private final Map<Integer, Reassembly> reassemblies = new HashMap<Integer, Reassembly>();
+	private long reassemblyBytes;
+
+	/**
+	 * Sends a message using this connection, in the lane of its priority
+	 *
+	 * @param message
+	 *            The message to send
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>Frames.NO_CORRELATION</code>
+	 * @param codec
+	 *            The codec to encode the message with
+	 * @throws IOException
+	 *             If the message cannot be encoded or the connection is closed
+	 */
+	void send(Datapackage message, int correlationId, Codec codec) throws IOException {
+		send(message, correlationId, codec, null);
+	}
+
+	/**
+	 * Sends a message using this connection and runs an action as soon as it has
+	 * been written, e.g. to encrypt everything sent after it. The message is
+	 * written before the frames of all other lanes queued after it, and frames
+	 * queued after it are not written before the action has run.
+	 *
+	 * @param message
+	 *            The message to send
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>Frames.NO_CORRELATION</code>
+	 * @param codec
+	 *            The codec to encode the message with
+	 * @param afterWritten
+	 *            Run by the writing thread once the message has been written, or
+	 *            null
+	 * @throws IOException
+	 *             If the message cannot be encoded or the connection is closed
+	 */
+	void send(Datapackage message, int correlationId, Codec codec, Runnable afterWritten) throws IOException {
+		Priority priority = message.getPriority();
+		// Encode and queue atomically, so frames are sent in the order they were encoded
+		frameCodec.lock.lock();
+		try {
+			ByteBuffer frame = frameCodec.encode(message, correlationId, codec, priority.ordinal());
+			boolean discardable = correlationId == Frames.NO_CORRELATION && !frameCodec.isLastFrameRequired()
+					&& afterWritten == null;
+			write(frame, message.id(), discardable, priority, afterWritten);
+		} finally {
+			frameCodec.lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a frame that has already been encoded without connection state, e.g.
+	 * a broadcast encoded once for all recipients. The buffer may be shared
+	 * between connections, so neither its content nor its position is modified.
+	 *
+	 * @param frame
+	 *            The frame to send, positioned at its first byte
+	 * @param messageId
+	 *            The ID of the encoded message
+	 * @param priority
+	 *            The priority of the encoded message
+	 * @throws IOException
+	 *             If the connection is closed
+	 */
+	void send(ByteBuffer frame, String messageId, Priority priority) throws IOException {
+		// Writing moves the position, so every connection gets its own view of a shared frame
+		write(frame.duplicate(), messageId, true, priority, null);
+	}
+
+	/**
+	 * Sends a heartbeat, e.g. a ping. Heartbeats are tiny and exempt from the
+	 * backpressure policy, so the thread sending them to many connections never
+	 * waits for a slow one.
+	 *
+	 * @param frame
+	 *            The frame to send, encoded without connection state. It is not
+	 *            modified and can be sent to several connections.
+	 * @param messageId
+	 *            The ID of the encoded message
+	 * @throws IOException
+	 *             If the connection is closed
+	 */
+	void sendHeartbeat(ByteBuffer frame, String messageId) throws IOException {
+		Outbound entry = new Outbound(frame.duplicate(), messageId, true, null);
+		queueLock.lock();
+		try {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			lanes[Priority.CONTROL.ordinal()].queue.add(entry);
+			queuedBytes += entry.size;
+		} finally {
+			queueLock.unlock();
+		}
+		scheduleFlush(true);
+	}
+
+	/**
+	 * Records that data has been received, see <code>lastReceived()</code>.
+	 * Called by the thread reading from the connection.
+	 */
+	protected void markReceived() {
+		lastReceived = System.nanoTime();
+	}
+
+	/**
+	 * @return The value of <code>System.nanoTime()</code> when data has last been
+	 *         received, or when the connection has been created
+	 */
+	long lastReceived() {
+		return lastReceived;
+	}
+
+	/**
+	 * @return A new ID for a file or fragmented message sent using this
+	 *         connection
+	 */
+	int nextTransferId() {
+		return lastTransferId.incrementAndGet();
+	}
+
+	/**
+	 * Queues a file to be transmitted after it has been offered. The file is not
+	 * counted as queued bytes, since it is not held in memory. It is queued in
+	 * the lane of <code>Priority.BULK</code>, so it must have been offered with
+	 * that priority.
+	 *
+	 * @param transfer
+	 *            The file to transmit
+	 * @throws IOException
+	 *             If the connection is closed
+	 */
+	protected void queueTransfer(FileTransfer transfer) throws IOException {
+		if (transfer.isDone()) {
+			// Empty file, the offer is all the receiver needs
+			transfer.finish();
+			return;
+		}
+		queueLock.lock();
+		try {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			lanes[Priority.BULK.ordinal()].queue.add(new Outbound(transfer, null, false));
+		} finally {
+			queueLock.unlock();
+		}
+		scheduleFlush(true);
+	}
+
+	/**
+	 * Lets this connection receive files, unless it does already
+	 *
+	 * @param directory
+	 *            The directory to store received files in
+	 * @param maxLength
+	 *            The maximum length of a file in bytes
+	 * @param listener
+	 *            Notified after every chunk received, or null
+	 */
+	void receiveFiles(File directory, long maxLength, FileProgressListener listener) {
+		if (fileReceiver == null) {
+			this.fileReceiver = new FileReceiver(directory, maxLength, listener);
+		}
+	}
+
+	/**
+	 * Limits the number of bytes waiting to be written
+	 *
+	 * @param policy
+	 *            What to do if the high watermark would be exceeded
+	 * @param lowWatermark
+	 *            The number of queued bytes below which the connection is no
+	 *            longer throttled
+	 * @param highWatermark
+	 *            The number of queued bytes above which the connection is
+	 *            throttled
+	 * @param throttleListener
+	 *            Notified when the connection becomes throttled, or null
+	 */
+	void setBackpressure(BackpressurePolicy policy, long lowWatermark, long highWatermark,
+			ThrottleListener throttleListener) {
+		this.policy = policy;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.throttleListener = throttleListener;
+	}
+
+	/**
+	 * Lets the I/O layer collect frames and write them together. A batch is
+	 * written as soon as it contains the given number of messages or bytes, or
+	 * when its first frame has been waiting for the given delay.
+	 *
+	 * @param maxMessages
+	 *            The number of messages completing a batch
+	 * @param maxBytes
+	 *            The number of bytes completing a batch
+	 * @param maxDelayNanos
+	 *            The maximum time a frame waits for further frames, 0 to write
+	 *            every frame as soon as possible
+	 */
+	void setBatching(int maxMessages, long maxBytes, long maxDelayNanos) {
+		this.batchMessages = maxMessages;
+		this.batchBytes = maxBytes;
+		this.batchDelayNanos = maxDelayNanos;
+	}
+
+	/**
+	 * @return The maximum time a frame waits for further frames, 0 if batching
+	 *         is disabled
+	 */
+	protected long batchDelayNanos() {
+		return batchDelayNanos;
+	}
+
+	/**
+	 * @param messages
+	 *            The number of messages collected
+	 * @param bytes
+	 *            The number of bytes collected
+	 * @return true, if batching is disabled or the collected frames complete a
+	 *         batch
+	 */
+	protected boolean isBatchComplete(int messages, long bytes) {
+		return batchDelayNanos == 0 || messages >= batchMessages || bytes >= batchBytes;
+	}
+
+	/**
+	 * Queues a frame owned by this connection and lets the I/O layer know,
+	 * applying the backpressure policy if the high watermark would be exceeded.
+	 * This method does not block unless the policy is
+	 * <code>BackpressurePolicy.BLOCK</code>.
+	 *
+	 * @param frame
+	 *            The frame to write, positioned at its first byte
+	 * @param messageId
+	 *            The ID of the encoded message
+	 * @param discardable
+	 *            Whether the frame may be discarded by the backpressure policy
+	 * @param priority
+	 *            The priority of the encoded message, naming the lane to queue
+	 *            the frame in
+	 * @param afterWritten
+	 *            Run by the writing thread once the frame has been written, or
+	 *            null
+	 * @throws IOException
+	 *             If the connection is closed, or has been closed by the
+	 *             backpressure policy
+	 */
+	protected void write(ByteBuffer frame, String messageId, boolean discardable, Priority priority,
+			Runnable afterWritten) throws IOException {
+		Outbound entry;
+		// The reply on a temporary connection is read as a single frame
+		if (frame.remaining() > Frames.HEADER_LENGTH + Frames.MAX_FRAGMENT_LENGTH && afterWritten == null
+				&& isPersistent() && !Frames.isStateful(frame.get(frame.position() + Frames.HEADER_LENGTH - 1))) {
+			entry = new Outbound(new FragmentedMessage(frame, nextTransferId()), messageId, discardable);
+		} else {
+			entry = new Outbound(frame, messageId, discardable, afterWritten);
+		}
+		BackpressurePolicy policy = this.policy;
+		boolean becameThrottled = false;
+		boolean queued = true;
+		boolean wait;
+		boolean batchComplete;
+		long bytes;
+
+		queueLock.lock();
+		try {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			if (queuedBytes + entry.size > highWatermark) {
+				becameThrottled = !throttled;
+				throttled = true;
+				queued = makeRoom(entry, policy);
+			}
+			if (queued) {
+				lanes[priority.ordinal()].queue.add(entry);
+				queuedBytes += entry.size;
+				if (afterWritten != null) {
+					barrier = lanes[priority.ordinal()];
+				}
+			}
+			wait = throttled && policy == BackpressurePolicy.BLOCK;
+			batchComplete = isBatchComplete(queuedEntries(), queuedBytes);
+			bytes = queuedBytes;
+		} finally {
+			queueLock.unlock();
+		}
+
+		ThrottleListener listener = throttleListener;
+		if (becameThrottled && listener != null) {
+			listener.connectionThrottled(this);
+		}
+		if (!queued && (policy == BackpressurePolicy.DISCONNECT || !entry.discardable)) {
+			// Also if the frame may neither be discarded nor queued
+			close();
+			throw new IOException("Receiver too slow, " + bytes + " bytes queued");
+		}
+		if (queued) {
+			scheduleFlush(batchComplete);
+		}
+		if (wait && mayBlock()) {
+			awaitDrained();
+		}
+	}
+
+	/**
+	 * Applies the backpressure policy before a frame is queued that would exceed
+	 * the high watermark. Must be called while holding the queue lock.
+	 *
+	 * @return true, if the frame is to be queued. Otherwise it is discarded, or
+	 *         the connection closed if it may not be discarded.
+	 */
+	private boolean makeRoom(Outbound entry, BackpressurePolicy policy) {
+		switch (policy) {
+		case DROP_OLDEST:
+			// Lowest priority first
+			for (int i = lanes.length - 1; i >= 0; i--) {
+				for (Iterator<Outbound> it = lanes[i].queue.iterator(); it.hasNext()
+						&& queuedBytes + entry.size > highWatermark;) {
+					Outbound queued = it.next();
+					if (queued.isDiscardable()) {
+						it.remove();
+						queuedBytes -= queued.size;
+					}
+				}
+			}
+			// Frames that may not be discarded may still exceed it
+			return queuedBytes + entry.size <= highWatermark;
+		case DROP_NEWEST:
+			return !entry.discardable;
+		case COALESCE:
+			for (Lane lane : lanes) {
+				for (Iterator<Outbound> it = lane.queue.iterator(); it.hasNext();) {
+					Outbound queued = it.next();
+					if (queued.isDiscardable() && entry.messageId != null
+							&& entry.messageId.equals(queued.messageId)) {
+						it.remove();
+						queuedBytes -= queued.size;
+					}
+				}
+			}
+			return queuedBytes + entry.size <= highWatermark;
+		case DISCONNECT:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Waits until the connection is no longer throttled or has been closed
+	 */
+	private void awaitDrained() throws InterruptedIOException {
+		queueLock.lock();
+		try {
+			while (throttled && isOpen()) {
+				drained.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a slow receiver");
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the I/O layer write the queued frames. Called after a frame has been
+	 * queued.
+	 *
+	 * @param batchComplete
+	 *            true, if the frames are to be written as soon as possible;
+	 *            false, if the I/O layer may wait up to
+	 *            <code>batchDelayNanos()</code> for further frames
+	 */
+	protected abstract void scheduleFlush(boolean batchComplete);
+
+	/**
+	 * @return false, if the calling thread is the one writing the queued frames
+	 *         and therefore must not wait for the queue to drain
+	 */
+	protected boolean mayBlock() {
+		return true;
+	}
+
+	/**
+	 * Chooses the lane whose first entry is to be written next. Every lane in
+	 * turn gets its quantum and keeps the turn until its deficit does not cover
+	 * its next entry. A lane holding an entry with an action to run after it has
+	 * been written is served first. Must be called while holding the queue lock.
+	 *
+	 * @return The lane, or null if all lanes are empty
+	 */
+	private Lane nextLane() {
+		if (queuedEntries() == 0) {
+			return null;
+		}
+		if (barrier != null) {
+			return barrier;
+		}
+		while (true) {
+			Lane lane = lanes[turn];
+			Outbound entry = lane.queue.peek();
+			if (entry == null) {
+				// Idle lanes don't save up for later
+				lane.deficit = 0;
+			} else if (lane.deficit >= entry.cost()) {
+				return lane;
+			}
+			turn = (turn + 1) % lanes.length;
+			lanes[turn].deficit += lanes[turn].quantum;
+		}
+	}
+
+	/**
+	 * @return The number of entries in all lanes. Must be called while holding
+	 *         the queue lock.
+	 */
+	private int queuedEntries() {
+		int entries = 0;
+		for (Lane lane : lanes) {
+			entries += lane.queue.size();
+		}
+		return entries;
+	}
+
+	/**
+	 * Takes the next frames to write from the lanes, so they can be written
+	 * using a single gathering write. Frames taken are not discarded anymore and
+	 * are returned again until they have been written completely. No frames are
+	 * taken once a queued transfer is due, see <code>nextTransfer()</code>, or
+	 * after a frame with an action to run after it has been written. Must only be
+	 * called by the thread writing the queued frames.
+	 *
+	 * @param frames
+	 *            The array to store the frames in
+	 * @return The number of frames stored, 0 if the queue is empty
+	 */
+	protected int nextFrames(ByteBuffer[] frames) {
+		if (inFlight.size() < frames.length && bytesInFlight < MAX_BYTES_IN_FLIGHT && !barrierInFlight) {
+			queueLock.lock();
+			try {
+				Lane lane;
+				Outbound entry;
+				while (inFlight.size() < frames.length && bytesInFlight < MAX_BYTES_IN_FLIGHT && !barrierInFlight
+						&& (lane = nextLane()) != null && (entry = lane.queue.peek()).transfer == null) {
+					lane.queue.poll();
+					lane.deficit -= entry.cost();
+					inFlight.add(entry);
+					bytesInFlight += entry.size;
+					if (entry.afterWritten != null) {
+						// The frames after it may depend on the action, e.g. be encrypted
+						barrier = null;
+						barrierInFlight = true;
+					}
+				}
+			} finally {
+				queueLock.unlock();
+			}
+		}
+
+		int count = 0;
+		for (Outbound entry : inFlight) {
+			frames[count++] = entry.frame;
+		}
+		return count;
+	}
+
+	/**
+	 * Releases the frames returned by <code>nextFrames()</code> that have been
+	 * written completely and runs their actions. Must only be called by the
+	 * thread writing the queued frames.
+	 */
+	protected void framesWritten() {
+		long written = 0;
+		Outbound entry;
+		while ((entry = inFlight.peek()) != null && !entry.frame.hasRemaining()) {
+			inFlight.poll();
+			written += entry.size;
+			if (entry.afterWritten != null) {
+				barrierInFlight = false;
+				entry.afterWritten.run();
+			}
+		}
+		if (written > 0) {
+			bytesInFlight -= written;
+			queueLock.lock();
+			try {
+				queuedBytes -= written;
+				releaseIfDrained();
+			} finally {
+				queueLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the transfer to write a chunk of next. Must only be called by the
+	 * thread writing the queued frames, after <code>nextFrames()</code> has
+	 * returned 0.
+	 *
+	 * @return The transfer that is due, or null
+	 */
+	protected ChunkedTransfer nextTransfer() {
+		queueLock.lock();
+		try {
+			Lane lane = nextLane();
+			Outbound entry = lane != null ? lane.queue.peek() : null;
+			if (entry == null || entry.transfer == null) {
+				return null;
+			}
+			// A partially written transfer cannot be taken back anymore
+			entry.started = true;
+			return entry.transfer;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves a transfer whose chunk has been written completely behind the
+	 * frames queued in its lane meanwhile, or removes it from the lane after its
+	 * last chunk. Must only be called by the thread writing the queued frames.
+	 *
+	 * @param transfer
+	 *            The transfer returned by <code>nextTransfer()</code>
+	 */
+	protected void chunkWritten(ChunkedTransfer transfer) {
+		int released = transfer.chunkWritten();
+		queueLock.lock();
+		try {
+			for (Lane lane : lanes) {
+				Outbound entry = lane.queue.peek();
+				if (entry != null && entry.transfer == transfer) {
+					lane.queue.poll();
+					lane.deficit -= entry.cost();
+					entry.size -= released;
+					queuedBytes -= released;
+					if (!transfer.isDone()) {
+						// Don't let a large transfer delay the messages sent after it
+						requeue(lane, entry);
+					}
+					releaseIfDrained();
+					break;
+				}
+			}
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a partially written transfer again, behind the frames queued in its
+	 * lane meanwhile. A fragmented message stays ahead of the fragmented
+	 * messages not started yet, and a file ahead of the offers of the files sent
+	 * after it, so they are sent one after the other.
+	 */
+	private static void requeue(Lane lane, Outbound entry) {
+		boolean file = entry.transfer instanceof FileTransfer;
+		if (file || entry.transfer instanceof FragmentedMessage) {
+			int ahead = 0;
+			for (Outbound queued : lane.queue) {
+				if (file ? queued.transfer == null && FileTransfer.OFFER_ID.equals(queued.messageId)
+						: queued.transfer instanceof FragmentedMessage && !queued.started) {
+					ArrayDeque<Outbound> before = new ArrayDeque<Outbound>(ahead);
+					for (int i = 0; i < ahead; i++) {
+						before.add(lane.queue.poll());
+					}
+					lane.queue.addFirst(entry);
+					Outbound moved;
+					while ((moved = before.pollLast()) != null) {
+						lane.queue.addFirst(moved);
+					}
+					return;
+				}
+				ahead++;
+			}
+		}
+		lane.queue.add(entry);
+	}
+
+	/**
+	 * Passes a received chunk of a file to the file receiver. Must only be
+	 * called by the thread reading from the connection.
+	 *
+	 * @param transferId
+	 *            The correlation ID of the chunk frame
+	 * @param data
+	 *            The payload of the chunk frame
+	 * @return The frame announcing the received file if the chunk completed it,
+	 *         otherwise null
+	 * @throws IOException
+	 *             If the file cannot be written or the chunk is invalid
+	 */
+	protected Frames.Frame chunkReceived(int transferId, ByteBuffer data) throws IOException {
+		FileReceiver receiver = fileReceiver;
+		return receiver != null ? receiver.chunkReceived(transferId, data) : null;
+	}
+
+	/**
+	 * Adds a received fragment to the fragmented message it belongs to. Must
+	 * only be called by the thread reading from the connection.
+	 *
+	 * @param messageId
+	 *            The correlation ID of the fragment frame
+	 * @param data
+	 *            The payload of the fragment frame
+	 * @return The decoded message if the fragment completed it, otherwise null
+	 * @throws IOException
+	 *             If the fragment is invalid, or the peer sends more or larger
+	 *             fragmented messages at once than allowed
+	 * @throws ClassNotFoundException
+	 *             If the class of the completed message is unknown
+	 */
+	protected Frames.Frame fragmentReceived(int messageId, ByteBuffer data) throws IOException, ClassNotFoundException {
+		Reassembly message = reassemblies.get(messageId);
+		if (message == null) {
+			if (reassemblies.size() >= MAX_REASSEMBLIES) {
+				throw new StreamCorruptedException("Too many fragmented messages at once");
+			}
+			message = new Reassembly(data);
+			reassemblies.put(messageId, message);
+		}
+		reassemblyBytes += message.add(data, MAX_REASSEMBLY_BYTES - reassemblyBytes);
+		if (!message.isComplete()) {
+			return null;
+		}
+		reassemblies.remove(messageId);
+		reassemblyBytes -= message.payload.length;
+		return new Frames.Frame(message.correlationId,
+				frameCodec.decode(message.flags, message.payload, 0, message.payload.length));
+	}
+
+	/**
+	 * Passes a received frame to the file receiver if it offers a file. Must
+	 * only be called by the thread reading from the connection.
+	 *
+	 * @param frame
+	 *            The decoded frame
+	 * @return The frame to deliver to the application, or null if the frame has
+	 *         been consumed
+	 * @throws IOException
+	 *             If the offer is malformed or exceeds the limits of the file
+	 *             receiver
+	 */
+	protected Frames.Frame messageReceived(Frames.Frame frame) throws IOException {
+		if (!(frame.message instanceof Datapackage)
+				|| !FileTransfer.OFFER_ID.equals(((Datapackage) frame.message).get(0))) {
+			return frame;
+		}
+		FileReceiver receiver = fileReceiver;
+		return receiver != null ? receiver.offered((Datapackage) frame.message) : null;
+	}
+
+	/**
+	 * Deletes the files that have not been received completely. Must be called
+	 * once the connection has been closed.
+	 */
+	protected void releaseFiles() {
+		FileReceiver receiver = fileReceiver;
+		if (receiver != null) {
+			receiver.release();
+		}
+	}
+
+	/**
+	 * Discards all frames that have not been written yet, e.g. because the
+	 * connection has been closed. Threads waiting for the queue to drain are
+	 * woken up and the transfers of queued files fail.
+	 */
+	protected void clearQueue() {
+		List<ChunkedTransfer> transfers = new ArrayList<ChunkedTransfer>();
+		queueLock.lock();
+		try {
+			for (Lane lane : lanes) {
+				for (Outbound entry : lane.queue) {
+					queuedBytes -= entry.size;
+					if (entry.transfer != null) {
+						transfers.add(entry.transfer);
+					}
+				}
+				lane.queue.clear();
+				lane.deficit = 0;
+			}
+			barrier = null;
+			throttled = false;
+			drained.signalAll();
+		} finally {
+			queueLock.unlock();
+		}
+		for (ChunkedTransfer transfer : transfers) {
+			transfer.fail(new ClosedChannelException());
+		}
+	}
+
+	/**
+	 * @return The number of bytes waiting to be written
+	 */
+	long queuedBytes() {
+		queueLock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true, if the high watermark has been exceeded and the queue has not
+	 *         been drained below the low watermark since
+	 */
+	boolean isThrottled() {
+		queueLock.lock();
+		try {
+			return throttled;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the throttling once the receiver has caught up and the queue has been
+	 * drained below the low watermark. Must be called while holding the queue's
+	 * lock.
+	 */
+	private void releaseIfDrained() {
+		if (throttled && queuedBytes <= lowWatermark) {
+			throttled = false;
+			drained.signalAll();
+		}
+	}
+
+	/**
+	 * Encrypts everything sent from now on. Must be called by the thread writing
+	 * the queued frames, see <code>send(Datapackage, int, Codec, Runnable)</code>.
+	 *
+	 * @param cipher
+	 *            The cipher of the records sent
+	 */
+	abstract void encryptSent(SessionCipher cipher);
+
+	/**
+	 * Decrypts everything received from now on. Must be called by the thread
+	 * reading from the connection, between two frames.
+	 *
+	 * @param cipher
+	 *            The cipher of the records received
+	 */
+	abstract void decryptReceived(SessionCipher cipher);
+
+	/**
+	 * @return The socket of the connection. It is passed to handlers as
+	 *         identifier of the connection.
+	 */
+	abstract Socket socket();
+
+	/**
+	 * @return true, if the connection has not been closed yet
+	 */
+	abstract boolean isOpen();
+
+	/**
+	 * Closes the connection
+	 */
+	abstract void close();
+
+	/**
+	 * Closes the connection as soon as the messages sent before have been
+	 * transmitted
+	 */
+	void closeWhenFlushed() {
+		close();
+	}
+
+	/**
+	 * @return true, if the connection is kept open after handling a message
+	 */
+	boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * Marks the connection to be kept open after handling a message, e.g.
+	 * because a client logged in using it
+	 */
+	void setPersistent() {
+		this.persistent = true;
+	}
+
+	/**
+	 * A frame or transfer waiting to be written
+	 */
+	private static final class Outbound {
+
+		final ByteBuffer frame;
+		final ChunkedTransfer transfer;
+		final String messageId;
+		final boolean discardable;
+		final Runnable afterWritten;
+		int size;
+		boolean started;
+
+		Outbound(ByteBuffer frame, String messageId, boolean discardable, Runnable afterWritten) {
+			this.frame = frame;
+			this.transfer = null;
+			this.messageId = messageId;
+			this.discardable = discardable;
+			this.afterWritten = afterWritten;
+			this.size = frame.remaining();
+		}
+
+		Outbound(ChunkedTransfer transfer, String messageId, boolean discardable) {
+			this.frame = null;
+			this.transfer = transfer;
+			this.messageId = messageId;
+			this.discardable = discardable;
+			this.afterWritten = null;
+			this.size = transfer.bufferedBytes();
+		}
+
+		/**
+		 * @return true, if the backpressure policy may remove this entry from
+		 *         the queue
+		 */
+		boolean isDiscardable() {
+			return discardable && !started;
+		}
+
+		/**
+		 * @return The number of bytes written when this entry is due
+		 */
+		int cost() {
+			return frame != null ? size : CHUNK_COST;
+		}
+
+	}
+
+	/**
+	 * The queue of the frames of one priority
+	 */
+	private static final class Lane {
+
+		final ArrayDeque<Outbound> queue = new ArrayDeque<Outbound>();
+		final int quantum;
+		long deficit;
+
+		Lane(int quantum) {
+			this.quantum = quantum;
+		}
+
+		static Lane[] forPriorities() {
+			Priority[] priorities = Priority.values();
+			Lane[] lanes = new Lane[priorities.length];
+			for (Priority priority : priorities) {
+				lanes[priority.ordinal()] = new Lane(priority.weight * QUANTUM);
+			}
+			return lanes;
+		}
+
+	}
+
+	/**
+	 * A fragmented message being received. Its first fragment starts with the
+	 * header of the original frame.
+	 */
+	private static final class Reassembly {
+
+		final int correlationId;
+		final int flags;
+		private final int length;
+		byte[] payload;
+		private int received;
+		private boolean headerSkipped;
+
+		Reassembly(ByteBuffer first) throws IOException {
+			if (first.remaining() < Frames.HEADER_LENGTH) {
+				throw new StreamCorruptedException("Fragment too short: " + first.remaining());
+			}
+			int length = first.getInt(first.position());
+			correlationId = first.getInt(first.position() + 4);
+			flags = first.get(first.position() + 8) & 0xFF;
+			if (length < 0 || length > Frames.MAX_MESSAGE_LENGTH) {
+				throw new StreamCorruptedException("Invalid message length: " + length);
+			}
+			if (Frames.isStateful(flags)) {
+				// Would be decoded out of order
+				throw new StreamCorruptedException("Fragmented message depends on the connection state");
+			}
+			this.length = length;
+			// Allocated as the fragments arrive, not as announced
+			payload = new byte[0];
+		}
+
+		/**
+		 * Appends a fragment, growing the payload if necessary
+		 *
+		 * @param data
+		 *            The payload of the fragment frame
+		 * @param budget
+		 *            The number of bytes that may be allocated for the payload
+		 * @return The number of bytes allocated
+		 * @throws StreamCorruptedException
+		 *             If the fragment exceeds the message or the budget
+		 */
+		int add(ByteBuffer data, long budget) throws StreamCorruptedException {
+			if (!headerSkipped) {
+				data.position(data.position() + Frames.HEADER_LENGTH);
+				headerSkipped = true;
+			}
+			int n = data.remaining();
+			if (n > length - received) {
+				throw new StreamCorruptedException("Fragment exceeds message length " + length);
+			}
+			int allocated = 0;
+			if (received + n > payload.length) {
+				long needed = received + n;
+				long capacity = Math.min(length, Math.max(2L * payload.length, needed));
+				if (capacity - payload.length > budget) {
+					// Grow only as far as needed once the budget gets tight
+					capacity = needed;
+					if (capacity - payload.length > budget) {
+						throw new StreamCorruptedException("Fragmented messages exceed " + MAX_REASSEMBLY_BYTES + " bytes");
+					}
+				}
+				allocated = (int) capacity - payload.length;
+				payload = Arrays.copyOf(payload, (int) capacity);
+			}
+			data.get(payload, received, n);
+			received += n;
+			return allocated;
+		}
+
+		boolean isComplete() {
+			return received == length;
+		}
+
+	}
+
+	/**
+	 * Notified when a connection exceeds its high watermark
+	 */
+	interface ThrottleListener {
+
+		/**
+		 * Called on the sending thread when a connection becomes throttled
+		 *
+		 * @param connection
+		 *            The throttled connection
+		 */
+		void connectionThrottled(Connection connection);
+
+	}
+
+}
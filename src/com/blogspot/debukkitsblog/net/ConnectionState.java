@@ -0,0 +1,49 @@
+package com.blogspot.debukkitsblog.net;
+
+/**
+ * The state of the persistent connection of a <code>Client</code> to its
+ * server. A started client is <code>CONNECTING</code> and then
+ * <code>CONNECTED</code>. If the connection fails or is lost, the client waits
+ * before it tries again, doubling the maximum wait after every failed attempt
+ * and waiting a random time up to that maximum, so many clients losing their
+ * server at the same time do not reconnect at the same time. After too many
+ * failed attempts in a row, the circuit breaker opens and the client waits
+ * longer, and finally the client may give up.<br>
+ * Override <code>onStateChanged(ConnectionState, ConnectionState)</code> of the
+ * client to be notified of the transitions.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public enum ConnectionState {
+
+	/**
+	 * The client has not been started yet, or has given up reconnecting after
+	 * the maximum number of failed attempts
+	 */
+	DISCONNECTED,
+
+	/**
+	 * The client is connecting to the server and logging in
+	 */
+	CONNECTING,
+
+	/**
+	 * The client is logged in and receiving messages
+	 */
+	CONNECTED,
+
+	/**
+	 * The connection has failed or been lost, the client waits before the next
+	 * attempt
+	 */
+	BACKING_OFF,
+
+	/**
+	 * The connection has failed too often in a row. The client waits for the
+	 * circuit breaker's open time before a single further attempt, and requests
+	 * fail immediately instead of trying to reach the server.
+	 */
+	CIRCUIT_OPEN;
+
+}
@@ -19,6 +19,7 @@ public class Datapackage extends ArrayList<Object> implements Serializable {
 	
 	private String senderID = "UNSIGNED";
 	private String senderGroupName = "UNSIGNED";
+	private transient Priority priority;
 
 	/**
 	 * Constructs a Datapackage consisting of an ID used by the remote application
@@ -36,6 +37,17 @@ public class Datapackage extends ArrayList<Object> implements Serializable {
 		}
 	}
 
+	/**
+	 * Constructs an empty Datapackage. Used by decoders, which add the ID and
+	 * payload afterwards.
+	 * 
+	 * @param initialCapacity
+	 *            The number of elements expected
+	 */
+	Datapackage(int initialCapacity) {
+		super(initialCapacity);
+	}
+
 	/**
 	 * Returns the ID of the package. The Datapackage can be identified with this.
 	 * 
@@ -88,6 +100,33 @@ public class Datapackage extends ArrayList<Object> implements Serializable {
 		this.senderGroupName = senderGroup;
 	}
 
+	/**
+	 * Returns the priority this Datapackage is sent with. The priority is not
+	 * transmitted, so received Datapackages have the default priority.
+	 *
+	 * @return The priority set using <code>setPriority(Priority)</code>, or
+	 *         <code>Priority.INTERACTIVE</code>
+	 */
+	public Priority getPriority() {
+		return priority != null ? priority : Priority.INTERACTIVE;
+	}
+
+	/**
+	 * Sets the priority this Datapackage is sent with, e.g.
+	 * <code>Priority.BULK</code> for large broadcasts, so they do not delay
+	 * requests and replies. Datapackages of different priorities may overtake
+	 * each other, see <code>Priority</code>.
+	 *
+	 * @param priority
+	 *            The priority
+	 */
+	public void setPriority(Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("Priority may not be null");
+		}
+		this.priority = priority;
+	}
+
 	/**
 	 * Returns the Datapackage as ArrayList, containing the Datapackage's ID at
 	 * index 0 and the payload from index 1 to the end. This method is redundant
@@ -0,0 +1,228 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread multiplexing the I/O of many non-blocking channels using a
+ * <code>Selector</code>. Channels are attached to an event loop by registering
+ * a <code>ChannelConnection</code> (or any other <code>Handler</code>) with
+ * it. All callbacks of a handler are invoked on the event loop's thread.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+	private final Thread thread;
+
+	private volatile boolean running;
+
+	/**
+	 * Creates an event loop and its thread. The loop does not run until
+	 * <code>start()</code> is called.
+	 *
+	 * @param name
+	 *            The name of the event loop's thread
+	 * @throws IOException
+	 *             If the selector cannot be opened
+	 */
+	EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the event loop's thread
+	 */
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stops the event loop and closes the selector. Registered channels are not
+	 * closed by this method.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true, if the calling thread is this event loop's thread
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Executes a task on the event loop's thread. If the calling thread is the
+	 * event loop's thread, the task is run immediately.
+	 *
+	 * @param task
+	 *            The task to run
+	 */
+	void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Executes a task on the event loop's thread after a delay. Delays shorter
+	 * than the resolution of the selector (one millisecond) are kept by polling
+	 * the selector until the task is due.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @param delayNanos
+	 *            The delay in nanoseconds
+	 */
+	void schedule(final Runnable task, long delayNanos) {
+		final long deadline = System.nanoTime() + delayNanos;
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				scheduledTasks.add(new ScheduledTask(deadline, task));
+			}
+		});
+	}
+
+	/**
+	 * @return The selector of this event loop. Only use it on the event loop's
+	 *         thread.
+	 */
+	Selector selector() {
+		return selector;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				ScheduledTask next = scheduledTasks.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					long timeout = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+					if (timeout > 0) {
+						selector.select(timeout);
+					} else {
+						selector.selectNow();
+					}
+				}
+				runTasks();
+				runScheduledTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					Handler handler = (Handler) key.attachment();
+					try {
+						if (key.isValid()) {
+							handler.handle(key);
+						}
+					} catch (CancelledKeyException e) {
+						handler.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+						handler.close();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void runScheduledTasks() {
+		ScheduledTask next;
+		long now = System.nanoTime();
+		while ((next = scheduledTasks.peek()) != null && next.deadline - now <= 0) {
+			scheduledTasks.poll();
+			try {
+				next.task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A task waiting for its deadline
+	 */
+	private static final class ScheduledTask implements Comparable<ScheduledTask> {
+
+		final long deadline;
+		final Runnable task;
+
+		ScheduledTask(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask other) {
+			return Long.signum(deadline - other.deadline);
+		}
+
+	}
+
+	/**
+	 * Something that is attached to a <code>SelectionKey</code> of an event loop
+	 * and processes the key's readiness events
+	 */
+	interface Handler {
+
+		/**
+		 * Processes the ready operations of a key
+		 *
+		 * @param key
+		 *            The selected key
+		 * @throws IOException
+		 *             If an I/O error occurs. The handler is closed afterwards.
+		 */
+		void handle(SelectionKey key) throws IOException;
+
+		/**
+		 * Closes the handler and its channel
+		 */
+		void close();
+
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.blogspot.debukkitsblog.net;
+
+/**
+ * Notified about the progress of a file sent using <code>sendFile</code> of a
+ * <code>Server</code> or <code>Client</code>. It is called by the thread
+ * transmitting the file after every chunk, so it must return quickly.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public interface FileProgressListener {
+
+	/**
+	 * Called after a chunk of a file has been transmitted
+	 *
+	 * @param identifier
+	 *            The identifier the file has been sent with
+	 * @param transferred
+	 *            The number of bytes transmitted so far
+	 * @param length
+	 *            The length of the file
+	 */
+	void progressed(String identifier, long transferred, long length);
+
+}
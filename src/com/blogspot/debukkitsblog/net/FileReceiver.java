@@ -0,0 +1,224 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the files sent over a connection (see <code>FileTransfer</code>).
+ * Every file is written chunk by chunk to a new file in the receiving
+ * directory, so it is never held in memory completely. Once the last chunk has
+ * arrived, a Datapackage with the identifier the file has been sent with is
+ * delivered to the application. It contains the received
+ * <code>java.io.File</code>, the original name of the file and its length.
+ * The file is deleted if the message cannot be delivered.<br>
+ * Files are sent one after the other, and a connection closes if its peer
+ * announces more than <code>MAX_OPEN_FILES</code> at once, a file longer than
+ * allowed or a transfer ID already in use.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class FileReceiver {
+
+	/**
+	 * The maximum number of files received over a connection at the same time
+	 */
+	static final int MAX_OPEN_FILES = 4;
+
+	private final File directory;
+	private final long maxLength;
+	private final FileProgressListener listener;
+
+	// Only written to by the reading thread, but released when the connection closes
+	private final Map<Integer, IncomingFile> incoming = new ConcurrentHashMap<Integer, IncomingFile>();
+
+	/**
+	 * Creates a receiver for one connection
+	 *
+	 * @param directory
+	 *            The directory to store received files in
+	 * @param maxLength
+	 *            The maximum length of a file in bytes
+	 * @param listener
+	 *            Notified after every chunk received, or null
+	 */
+	FileReceiver(File directory, long maxLength, FileProgressListener listener) {
+		this.directory = directory;
+		this.maxLength = maxLength;
+		this.listener = listener;
+	}
+
+	/**
+	 * Prepares receiving an announced file
+	 *
+	 * @param offer
+	 *            The message announcing the file
+	 * @return The frame to deliver if the file is empty and therefore complete
+	 *         already, otherwise null
+	 * @throws StreamCorruptedException
+	 *             If the offer is malformed, the file too long, or too many files
+	 *             are received at once
+	 */
+	Frames.Frame offered(Datapackage offer) throws StreamCorruptedException {
+		if (offer.size() < 5 || !(offer.get(1) instanceof Integer) || !(offer.get(2) instanceof String)
+				|| !(offer.get(3) instanceof String) || !(offer.get(4) instanceof Long)) {
+			throw new StreamCorruptedException("Malformed file offer");
+		}
+		long length = (Long) offer.get(4);
+		if (length < 0 || length > maxLength) {
+			throw new StreamCorruptedException("File exceeds " + maxLength + " bytes");
+		}
+		if (incoming.containsKey(offer.get(1))) {
+			throw new StreamCorruptedException("Duplicate file transfer ID");
+		}
+		if (incoming.size() >= MAX_OPEN_FILES) {
+			throw new StreamCorruptedException("Too many files at once");
+		}
+
+		IncomingFile file;
+		try {
+			file = new IncomingFile(offer);
+		} catch (IOException e) {
+			// Cannot store the file, its chunks will be discarded
+			e.printStackTrace();
+			return null;
+		}
+		if (file.length == 0) {
+			return file.complete();
+		}
+		incoming.put((Integer) offer.get(1), file);
+		return null;
+	}
+
+	/**
+	 * Writes a received chunk to its file
+	 *
+	 * @param transferId
+	 *            The ID of the transfer the chunk belongs to
+	 * @param data
+	 *            The content of the chunk
+	 * @return The frame to deliver if the chunk completed the file, otherwise
+	 *         null
+	 * @throws IOException
+	 *             If the file cannot be written or the chunk exceeds the
+	 *             announced length
+	 */
+	Frames.Frame chunkReceived(int transferId, ByteBuffer data) throws IOException {
+		IncomingFile file = incoming.get(transferId);
+		if (file == null) {
+			return null;
+		}
+		if (!data.hasRemaining()) {
+			// The sender aborted the transfer
+			incoming.remove(transferId);
+			file.discard();
+			return null;
+		}
+		if (data.remaining() > file.length - file.received) {
+			throw new StreamCorruptedException("File exceeds its announced length");
+		}
+
+		while (data.hasRemaining()) {
+			file.received += file.channel.write(data);
+		}
+		if (listener != null) {
+			listener.progressed(file.identifier, file.received, file.length);
+		}
+		if (file.received == file.length) {
+			incoming.remove(transferId);
+			return file.complete();
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the files that have not been received completely. Called when the
+	 * connection has been closed.
+	 */
+	void release() {
+		for (Integer transferId : incoming.keySet()) {
+			IncomingFile file = incoming.remove(transferId);
+			if (file != null) {
+				file.discard();
+			}
+		}
+	}
+
+	/**
+	 * A file being received
+	 */
+	private final class IncomingFile {
+
+		final String identifier;
+		final String name;
+		final long length;
+		final Path path;
+		final FileChannel channel;
+		final Datapackage offer;
+		long received;
+
+		IncomingFile(Datapackage offer) throws IOException {
+			this.offer = offer;
+			this.identifier = (String) offer.get(2);
+			this.name = (String) offer.get(3);
+			this.length = (Long) offer.get(4);
+			// Never use the name chosen by the sender as path
+			this.path = Files.createTempFile(directory.toPath(), "received-", "-" + sanitize(name));
+			this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+		}
+
+		Frames.Frame complete() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			Datapackage message = new Datapackage(identifier, path.toFile(), name, length);
+			message.sign(offer.getSenderID(), offer.getSenderGroup());
+			return new Frames.Frame(Frames.NO_CORRELATION, message, path.toFile());
+		}
+
+		void discard() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			FileReceiver.discard(path.toFile());
+		}
+
+	}
+
+	/**
+	 * Deletes a received file that could not be delivered
+	 *
+	 * @param file
+	 *            The received file
+	 */
+	static void discard(File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Reduces a file name to characters that are safe on every file system
+	 */
+	private static String sanitize(String name) {
+		StringBuilder safe = new StringBuilder(Math.min(name.length(), 64));
+		for (int i = 0; i < name.length() && safe.length() < 64; i++) {
+			char c = name.charAt(i);
+			safe.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.'
+					|| c == '-' || c == '_' ? c : '_');
+		}
+		return safe.toString();
+	}
+
+}
@@ -0,0 +1,179 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A file being sent over a connection. The file is announced by an offer
+ * message and then transmitted in chunk frames (see
+ * <code>Frames.FILE_CHUNK</code>), whose correlation ID is the ID of the
+ * transfer. The chunks are written from the file to the connection using
+ * <code>FileChannel.transferTo</code>, so the file is never held in memory
+ * completely and not encoded. Only a plain <code>SocketChannel</code> lets the
+ * operating system copy the chunks to the socket directly; the blocking
+ * transport, SSL and encryption copy them through a buffer in the heap.
+ * Between two chunks, the connection transmits the other frames queued
+ * meanwhile.<br>
+ * An empty chunk frame aborts the transfer, e.g. because the file has been
+ * truncated while it was being sent.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class FileTransfer extends ChunkedTransfer {
+
+	/**
+	 * The ID of the message announcing a file. It contains the ID of the
+	 * transfer, the identifier the file has been sent with, the name of the file
+	 * and its length.
+	 */
+	static final String OFFER_ID = "_INTERNAL_FILE_";
+
+	/**
+	 * The maximum number of bytes of a file transmitted in a single frame
+	 */
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	private final int transferId;
+	private final String identifier;
+	private final String name;
+	private final FileChannel file;
+	private final long length;
+	private final FileProgressListener listener;
+	private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	// The state of the chunk being written, only accessed by the writing thread
+	private long position;
+	private long chunkRemaining;
+	private IOException failure;
+
+	/**
+	 * Opens a file to be sent
+	 *
+	 * @param transferId
+	 *            The ID of the transfer, unique for the connection
+	 * @param identifier
+	 *            The identifier the file is sent with
+	 * @param file
+	 *            The file to send
+	 * @param listener
+	 *            Notified after every chunk, or null
+	 * @throws IOException
+	 *             If the file cannot be opened
+	 */
+	FileTransfer(int transferId, String identifier, File file, FileProgressListener listener) throws IOException {
+		this.transferId = transferId;
+		this.identifier = identifier;
+		this.name = file.getName();
+		this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.length = this.file.size();
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The message announcing the file to the receiver
+	 */
+	Datapackage offer() {
+		Datapackage offer = new Datapackage(OFFER_ID, transferId, identifier, name, length);
+		// The chunks are queued in the same lane, so they cannot overtake the offer
+		offer.setPriority(Priority.BULK);
+		return offer;
+	}
+
+	/**
+	 * @return A future completed once the whole file has been written to the
+	 *         connection
+	 */
+	CompletableFuture<Void> future() {
+		return future;
+	}
+
+	@Override
+	boolean writeChunk(WritableByteChannel target) throws IOException {
+		if (!header.hasRemaining() && chunkRemaining == 0) {
+			int size = (int) Math.min(CHUNK_SIZE, length - position);
+			if (file.size() < position + size) {
+				// The receiver expects the announced length, give up cleanly
+				failure = new EOFException("File has been truncated while sending: " + name);
+				size = 0;
+			}
+			startChunk(size, transferId, Frames.FILE_CHUNK);
+			chunkRemaining = size;
+		}
+
+		if (!writeHeader(target)) {
+			return false;
+		}
+		while (chunkRemaining > 0) {
+			long n = file.transferTo(position, chunkRemaining, target);
+			if (n == 0) {
+				return false;
+			}
+			position += n;
+			chunkRemaining -= n;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true, if all chunks have been written or the transfer has been
+	 *         aborted
+	 */
+	@Override
+	boolean isDone() {
+		return failure != null || (position == length && chunkRemaining == 0 && !header.hasRemaining());
+	}
+
+	/**
+	 * Reports the progress after a chunk has been written and completes the
+	 * transfer after the last one
+	 */
+	@Override
+	int chunkWritten() {
+		if (failure == null && listener != null) {
+			listener.progressed(identifier, position, length);
+		}
+		if (isDone()) {
+			finish();
+		}
+		// The file is not held in the heap
+		return 0;
+	}
+
+	@Override
+	int bufferedBytes() {
+		return 0;
+	}
+
+	/**
+	 * Closes the file and completes the future, exceptionally if the transfer
+	 * has been aborted
+	 */
+	void finish() {
+		close();
+		if (failure != null) {
+			future.completeExceptionally(failure);
+		} else {
+			future.complete(null);
+		}
+	}
+
+	@Override
+	void fail(Throwable cause) {
+		close();
+		future.completeExceptionally(cause);
+	}
+
+	private void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
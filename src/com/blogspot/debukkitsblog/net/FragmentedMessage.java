@@ -0,0 +1,98 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame too large to be written at once. The complete frame, header
+ * included, is split into fragment frames (see <code>Frames.FRAGMENT</code>)
+ * of at most <code>Frames.MAX_FRAGMENT_LENGTH</code> bytes, whose correlation
+ * ID identifies the message. The receiver reassembles the frame and decodes it
+ * as if it had been received at once.<br>
+ * Other messages overtake a fragmented message, so it must not depend on the
+ * state of the connection: <code>FrameCodec</code> encodes large messages
+ * without connection state.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class FragmentedMessage extends ChunkedTransfer {
+
+	private final ByteBuffer frame;
+	private final int messageId;
+	private final ByteBuffer[] chunk = new ByteBuffer[2];
+	private ByteBuffer fragment = ByteBuffer.allocate(0);
+	private int fragmentLength;
+
+	/**
+	 * Creates a fragmented message
+	 *
+	 * @param frame
+	 *            The complete frame, positioned at its first byte. It is not
+	 *            modified and can be shared with other connections.
+	 * @param messageId
+	 *            The ID of the message, unique for the connection
+	 */
+	FragmentedMessage(ByteBuffer frame, int messageId) {
+		this.frame = frame.duplicate();
+		this.messageId = messageId;
+		chunk[0] = header;
+	}
+
+	@Override
+	boolean writeChunk(WritableByteChannel target) throws IOException {
+		if (!header.hasRemaining() && !fragment.hasRemaining()) {
+			int length = Math.min(Frames.MAX_FRAGMENT_LENGTH, frame.remaining());
+			fragment = frame.duplicate();
+			fragment.limit(fragment.position() + length);
+			frame.position(fragment.limit());
+			startChunk(length, messageId, Frames.FRAGMENT);
+			chunk[1] = fragment;
+			fragmentLength = length;
+		}
+
+		if (target instanceof GatheringByteChannel) {
+			// Header and fragment with a single system call
+			GatheringByteChannel gathering = (GatheringByteChannel) target;
+			while (fragment.hasRemaining()) {
+				if (gathering.write(chunk) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		if (!writeHeader(target)) {
+			return false;
+		}
+		while (fragment.hasRemaining()) {
+			if (target.write(fragment) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	boolean isDone() {
+		return !frame.hasRemaining() && !header.hasRemaining() && !fragment.hasRemaining();
+	}
+
+	@Override
+	int chunkWritten() {
+		return fragmentLength;
+	}
+
+	@Override
+	int bufferedBytes() {
+		return frame.remaining() + fragment.remaining();
+	}
+
+	@Override
+	void fail(Throwable cause) {
+		// Nothing to release, the frame is garbage collected
+	}
+
+}
@@ -0,0 +1,447 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the frames of one connection, keeping the state that
+ * spans several messages of that connection.<br>
+ * Datapackages encoded with <code>Codec.SERIALIZATION</code> are written to a
+ * single object stream living as long as the connection, so the stream header
+ * is sent only once and the description of every class is sent only the first
+ * time an instance of it is transmitted; afterwards a small number refers to
+ * it. The stream is reset before every message, so objects themselves are
+ * never referenced across messages and a modified object sent again arrives in
+ * its current state.<br>
+ * If compression has been negotiated for the connection, payloads reaching
+ * the threshold are compressed with a compressor context living as long as the
+ * connection, so repeated similar messages compress well.<br>
+ * Messages whose payload exceeds <code>Frames.MAX_FRAGMENT_LENGTH</code> are
+ * fragmented and may be overtaken by later messages, so they are encoded and
+ * compressed without connection state.<br>
+ * Frames of different lanes (see <code>Priority</code>) may overtake each
+ * other, so every lane has its own object stream and compressor context. The
+ * frames of a lane must be decoded in the same order they have been encoded.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+class FrameCodec {
+
+	private static final int LANES = Priority.values().length;
+
+	/**
+	 * Guards the encoder state. <code>Connection</code> holds it from encoding a
+	 * frame until the frame has been queued.
+	 */
+	final ReentrantLock lock = new ReentrantLock();
+
+	private final SwitchableOutputStream target = new SwitchableOutputStream();
+	private final Encoder[] encoders = new Encoder[LANES];
+	private boolean lastFrameRequired;
+
+	// Only accessed by the decoding thread
+	private final Decoder[] decoders = new Decoder[LANES];
+
+	private volatile CompressionStatistics compressionStatistics;
+	private volatile boolean compressing;
+	private int compressionThreshold;
+
+	/**
+	 * Compresses the payloads of the frames encoded from now on, if they reach
+	 * the threshold. Only call this method after the receiver has announced it
+	 * can decompress frames.
+	 *
+	 * @param threshold
+	 *            The minimum size of a payload to be compressed
+	 * @param statistics
+	 *            The statistics to record compression and decompression in
+	 */
+	void enableCompression(int threshold, CompressionStatistics statistics) {
+		lock.lock();
+		try {
+			this.compressionThreshold = threshold;
+			this.compressionStatistics = statistics;
+			this.compressing = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true, if the receiver of the frames encoded by this codec is able
+	 *         to decompress frames
+	 */
+	boolean isCompressing() {
+		return compressing;
+	}
+
+	/**
+	 * Releases the native resources of the compressors. Must be called once the
+	 * connection has been closed.
+	 */
+	void release() {
+		lock.lock();
+		try {
+			for (Encoder encoder : encoders) {
+				if (encoder != null && encoder.deflater != null) {
+					encoder.deflater.end();
+					encoder.deflater = null;
+				}
+			}
+			// Nothing is encoded anymore
+			compressing = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a message and wraps it into a frame. Thread-safe, but callers
+	 * must make sure frames are transmitted in the order they were encoded.
+	 *
+	 * @param message
+	 *            The message to encode
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>Frames.NO_CORRELATION</code>
+	 * @param codec
+	 *            The codec to encode the message with
+	 * @param lane
+	 *            The lane the frame is sent in, i.e. the ordinal of its
+	 *            <code>Priority</code>
+	 * @return A buffer containing the complete frame, ready to be written
+	 * @throws IOException
+	 *             If the message cannot be encoded
+	 */
+	ByteBuffer encode(Datapackage message, int correlationId, Codec codec, int lane) throws IOException {
+		lock.lock();
+		try {
+			if (encoders[lane] == null) {
+				encoders[lane] = new Encoder();
+			}
+			Encoder encoder = encoders[lane];
+			lastFrameRequired = false;
+			Frames.FrameOutputStream frame;
+			int flags;
+			if (codec != Codec.SERIALIZATION) {
+				frame = new Frames.FrameOutputStream(256);
+				codec.encode(message, frame);
+				flags = codec.ordinal();
+			} else {
+				try {
+					frame = new Frames.FrameOutputStream(256, Frames.MAX_FRAGMENT_LENGTH);
+					flags = encodeStream(message, frame, encoder);
+				} catch (Frames.FrameTooLargeException e) {
+					// Large messages are fragmented and overtaken by later ones, so
+					// they must not be part of the object stream
+					frame = new Frames.FrameOutputStream(2 * Frames.MAX_FRAGMENT_LENGTH);
+					Codec.SERIALIZATION.encode(message, frame);
+					flags = Codec.SERIALIZATION.ordinal();
+				}
+			}
+
+			int length = frame.payload().remaining();
+			if (compressing && length > Frames.MAX_FRAGMENT_LENGTH) {
+				// Not using the compressor context for the same reason
+				frame = Compression.deflate(frame, null, compressionStatistics);
+				flags |= Frames.FLAG_COMPRESSED;
+			} else if (compressing && length >= compressionThreshold) {
+				if (encoder.deflater == null) {
+					encoder.deflater = new Deflater();
+				}
+				frame = Compression.deflate(frame, encoder.deflater, compressionStatistics);
+				flags |= Frames.FLAG_COMPRESSED | Frames.FLAG_COMPRESSION_STREAM;
+				// The receiver's decompressor must see every compressed frame
+				lastFrameRequired = true;
+			}
+			return Frames.finish(frame, correlationId, flags | lane << Frames.LANE_SHIFT);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a message to the object stream of a lane
+	 *
+	 * @return The flags of the frame
+	 */
+	private int encodeStream(Datapackage message, Frames.FrameOutputStream frame, Encoder encoder)
+			throws IOException {
+		target.set(frame);
+		boolean written = false;
+		try {
+			if (encoder.out == null) {
+				encoder.out = new CachingObjectOutputStream(target);
+			}
+			int knownClasses = encoder.out.classes.size();
+			encoder.out.reset();
+			encoder.out.writeObject(message);
+			encoder.out.flush();
+			lastFrameRequired = encoder.out.classes.size() != knownClasses;
+			written = true;
+		} finally {
+			target.set(null);
+			if (!written) {
+				// The stream state is unknown now, start over and tell the receiver
+				encoder.out = null;
+				encoder.resetPending = true;
+			}
+		}
+
+		int flags = Codec.SERIALIZATION.ordinal() | Frames.FLAG_STREAM;
+		if (encoder.resetPending) {
+			flags |= Frames.FLAG_STREAM_RESET;
+			encoder.resetPending = false;
+			lastFrameRequired = true;
+		}
+		return flags;
+	}
+
+	/**
+	 * Tells whether later frames depend on the frame encoded last, because it
+	 * introduced class descriptions or restarted the stream. Such a frame must
+	 * be transmitted; any other frame can be discarded before transmission
+	 * without affecting the decoding of the following frames. Callers must hold
+	 * the lock of this codec from encoding until this call, so no other frame is
+	 * encoded in between.
+	 *
+	 * @return true, if the frame encoded last must not be discarded
+	 */
+	boolean isLastFrameRequired() {
+		lock.lock();
+		try {
+			return lastFrameRequired;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Decodes the payload of a frame. Must be called by a single thread only.
+	 *
+	 * @param flags
+	 *            The flags byte of the frame header
+	 * @param payload
+	 *            The array containing the payload
+	 * @param offset
+	 *            The position of the first byte of the payload
+	 * @param length
+	 *            The length of the payload
+	 * @return The decoded message
+	 * @throws IOException
+	 *             If the payload is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message is unknown
+	 */
+	Object decode(int flags, byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+		Decoder decoder = null;
+		if (Frames.isStateful(flags)) {
+			int lane = (flags & Frames.LANE_MASK) >>> Frames.LANE_SHIFT;
+			if (lane >= LANES) {
+				throw new StreamCorruptedException("Unknown lane: " + lane);
+			}
+			if (decoders[lane] == null) {
+				decoders[lane] = new Decoder();
+			}
+			decoder = decoders[lane];
+		}
+
+		if ((flags & Frames.FLAG_COMPRESSION_STREAM) != 0) {
+			if (decoder.inflater == null) {
+				decoder.inflater = new Inflater();
+			}
+			payload = Compression.inflate(decoder.inflater, payload, offset, length, compressionStatistics);
+			offset = 0;
+			length = payload.length;
+			flags &= ~(Frames.FLAG_COMPRESSED | Frames.FLAG_COMPRESSION_STREAM);
+		} else if ((flags & Frames.FLAG_COMPRESSED) != 0) {
+			payload = Compression.inflate(null, payload, offset, length, compressionStatistics);
+			offset = 0;
+			length = payload.length;
+			flags &= ~Frames.FLAG_COMPRESSED;
+		}
+
+		if ((flags & Frames.FLAG_STREAM) == 0) {
+			return Frames.decode(flags, payload, offset, length);
+		}
+
+		if (decoder.in == null || (flags & Frames.FLAG_STREAM_RESET) != 0) {
+			decoder.in = new CachingObjectInputStream(decoder.feed);
+		}
+		decoder.feed.set(payload, offset, length);
+		Object message = decoder.in.readObject();
+		if (decoder.feed.remaining() != 0) {
+			throw new StreamCorruptedException("Unexpected data after message");
+		}
+		return message;
+	}
+
+	/**
+	 * The encoder state of a lane
+	 */
+	private static final class Encoder {
+
+		CachingObjectOutputStream out;
+		boolean resetPending;
+		Deflater deflater;
+
+	}
+
+	/**
+	 * The decoder state of a lane
+	 */
+	private static final class Decoder {
+
+		final FeedInputStream feed = new FeedInputStream();
+		CachingObjectInputStream in;
+		Inflater inflater;
+
+	}
+
+	/**
+	 * An ObjectOutputStream without stream header that writes every class
+	 * description only once and afterwards refers to it by its index
+	 */
+	private static class CachingObjectOutputStream extends ObjectOutputStream {
+
+		private final Map<ObjectStreamClass, Integer> classes = new IdentityHashMap<ObjectStreamClass, Integer>();
+
+		CachingObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeStreamHeader() throws IOException {
+			// The stream lives as long as the connection, no header needed
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			Integer index = classes.get(desc);
+			if (index != null) {
+				writeInt(index);
+			} else {
+				writeInt(-1);
+				super.writeClassDescriptor(desc);
+				classes.put(desc, classes.size());
+			}
+		}
+
+	}
+
+	/**
+	 * The counterpart of <code>CachingObjectOutputStream</code>
+	 */
+	private static class CachingObjectInputStream extends ObjectInputStream {
+
+		private final List<ObjectStreamClass> classes = new ArrayList<ObjectStreamClass>();
+
+		CachingObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected void readStreamHeader() throws IOException {
+			// See CachingObjectOutputStream
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			int index = readInt();
+			if (index == -1) {
+				ObjectStreamClass desc = super.readClassDescriptor();
+				classes.add(desc);
+				return desc;
+			}
+			if (index < 0 || index >= classes.size()) {
+				throw new StreamCorruptedException("Unknown class index: " + index);
+			}
+			return classes.get(index);
+		}
+
+	}
+
+	/**
+	 * An OutputStream forwarding to a stream that can be replaced between
+	 * messages
+	 */
+	private static class SwitchableOutputStream extends OutputStream {
+
+		private OutputStream target;
+
+		void set(OutputStream target) {
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.write(b, off, len);
+		}
+
+	}
+
+	/**
+	 * An InputStream reading the payload of the current frame
+	 */
+	private static class FeedInputStream extends InputStream {
+
+		private byte[] buf;
+		private int pos;
+		private int end;
+
+		void set(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		int remaining() {
+			return end - pos;
+		}
+
+		@Override
+		public int read() {
+			return pos < end ? buf[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= end) {
+				return -1;
+			}
+			int n = Math.min(len, end - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - pos;
+		}
+
+	}
+
+}
@@ -0,0 +1,414 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Utility methods for the wire format used by <code>Client</code> and
+ * <code>Server</code>. Every message is transmitted as a frame consisting of a
+ * header followed by the encoded message. The header contains the length of
+ * the message, which allows non-blocking transports to find message boundaries
+ * without decoding, a correlation ID, which allows many requests to share one
+ * connection and their replies to be matched to them, and a flags byte naming
+ * the <code>Codec</code> the message was encoded with and the lane it was
+ * sent in.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class Frames {
+
+	/**
+	 * The length of the frame header in bytes
+	 */
+	static final int HEADER_LENGTH = 9;
+
+	/**
+	 * The bits of the flags byte containing the ID of the codec
+	 */
+	static final int CODEC_MASK = 0x03;
+
+	/**
+	 * The bits of the flags byte containing the lane of the frame, i.e. the
+	 * ordinal of its <code>Priority</code>. Every lane has its own connection
+	 * state (see <code>FrameCodec</code>), since frames of different lanes may
+	 * overtake each other. Lane 3 is reserved for the frames below.
+	 */
+	static final int LANE_MASK = 0x0C;
+
+	/**
+	 * The position of the lane bits in the flags byte
+	 */
+	static final int LANE_SHIFT = 2;
+
+	/**
+	 * The flags byte of a frame carrying a chunk of a file instead of a message
+	 * (see <code>FileTransfer</code>). It is in the reserved lane, so the frame
+	 * is never decoded. The correlation ID of such a frame is the ID of the
+	 * transfer.
+	 */
+	static final int FILE_CHUNK = 0x0F;
+
+	/**
+	 * The flags byte of a frame carrying a fragment of a larger frame (see
+	 * <code>FragmentedMessage</code>). The correlation ID of such a frame
+	 * identifies the fragmented message.
+	 */
+	static final int FRAGMENT = 0x0E;
+
+	/**
+	 * Flag indicating that the payload continues the object stream of the
+	 * connection (see <code>FrameCodec</code>)
+	 */
+	static final int FLAG_STREAM = 0x10;
+
+	/**
+	 * Flag indicating that the sender started a new object stream, so the
+	 * receiver has to discard the state of the previous one
+	 */
+	static final int FLAG_STREAM_RESET = 0x20;
+
+	/**
+	 * Flag indicating that the payload has been compressed (see
+	 * <code>Compression</code>)
+	 */
+	static final int FLAG_COMPRESSED = 0x40;
+
+	/**
+	 * Flag indicating that the payload has been compressed using the compressor
+	 * context of the connection, so it can only be decompressed by the
+	 * connection's decompressor
+	 */
+	static final int FLAG_COMPRESSION_STREAM = 0x80;
+
+	/**
+	 * The capability sent in the login message by clients able to exchange
+	 * compressed frames
+	 */
+	static final String COMPRESSION_DEFLATE = "DEFLATE";
+
+	/**
+	 * The capability sent in the login message by clients wanting to encrypt the
+	 * connection, followed by their Diffie-Hellman public key, see
+	 * <code>SessionCipher</code>
+	 */
+	static final String ENCRYPTION_DH_AES_GCM = "DH-AES-GCM";
+
+	/**
+	 * The correlation ID of frames that are neither a request expecting a reply
+	 * nor a reply
+	 */
+	static final int NO_CORRELATION = 0;
+
+	/**
+	 * The maximum length of a frame's payload. Larger frames are considered
+	 * corrupt and cause the connection to be closed. The payload is allocated as
+	 * it arrives, not as announced by the header.
+	 */
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * The maximum length of the payload of a fragment. Messages whose payload
+	 * is larger are encoded without connection state and fragmented, so they
+	 * do not delay the messages sent after them.
+	 */
+	static final int MAX_FRAGMENT_LENGTH = 64 * 1024;
+
+	/**
+	 * The maximum length of the payload of a fragmented message. The memory
+	 * for reassembling it is allocated as its fragments arrive, and a
+	 * connection closes if its peer sends more fragmented messages at once
+	 * than it has lanes, or more than this many bytes of them.
+	 */
+	static final int MAX_MESSAGE_LENGTH = 1024 * 1024 * 1024;
+
+	private Frames() {
+	}
+
+	/**
+	 * @param flags
+	 *            The flags byte of a frame header
+	 * @return true, if decoding the frame depends on the frames received before
+	 *         it, so it must not be overtaken by them or overtake them
+	 */
+	static boolean isStateful(int flags) {
+		return (flags & (FLAG_STREAM | FLAG_COMPRESSION_STREAM)) != 0;
+	}
+
+	/**
+	 * Encodes a message and wraps it into a frame
+	 *
+	 * @param message
+	 *            The message to encode
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>NO_CORRELATION</code>
+	 * @param codec
+	 *            The codec to encode the message with
+	 * @return A buffer containing the complete frame, ready to be written
+	 * @throws IOException
+	 *             If the message cannot be encoded
+	 */
+	static ByteBuffer encode(Datapackage message, int correlationId, Codec codec) throws IOException {
+		FrameOutputStream out = new FrameOutputStream(256);
+		codec.encode(message, out);
+		return finish(out, correlationId, codec.ordinal());
+	}
+
+	/**
+	 * Fills in the header of a frame whose payload has been written
+	 *
+	 * @param out
+	 *            The stream the payload has been written to
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>NO_CORRELATION</code>
+	 * @param flags
+	 *            The flags byte of the frame
+	 * @return A buffer containing the complete frame, ready to be written
+	 */
+	static ByteBuffer finish(FrameOutputStream out, int correlationId, int flags) {
+		ByteBuffer frame = out.toByteBuffer();
+		frame.putInt(0, frame.limit() - HEADER_LENGTH);
+		frame.putInt(4, correlationId);
+		frame.put(8, (byte) flags);
+		return frame;
+	}
+
+	/**
+	 * Decodes the payload of a frame
+	 *
+	 * @param flags
+	 *            The flags byte of the frame header
+	 * @param payload
+	 *            The array containing the payload
+	 * @param offset
+	 *            The position of the first byte of the payload
+	 * @param length
+	 *            The length of the payload
+	 * @return The decoded message
+	 * @throws IOException
+	 *             If the payload is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message is unknown
+	 */
+	static Object decode(int flags, byte[] payload, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if ((flags & FLAG_COMPRESSION_STREAM) != 0) {
+			throw new StreamCorruptedException("Frame depends on the compressor context of a connection");
+		}
+		if ((flags & FLAG_COMPRESSED) != 0) {
+			payload = Compression.inflate(null, payload, offset, length, null);
+			offset = 0;
+			length = payload.length;
+		}
+		return Codec.forId(flags & CODEC_MASK).decode(payload, offset, length);
+	}
+
+	/**
+	 * Writes a message as a single frame to a stream
+	 *
+	 * @param out
+	 *            The stream to write to
+	 * @param message
+	 *            The message to write
+	 * @param correlationId
+	 *            The correlation ID of the request or reply, or
+	 *            <code>NO_CORRELATION</code>
+	 * @param codec
+	 *            The codec to encode the message with
+	 * @throws IOException
+	 *             If writing fails
+	 */
+	static void write(OutputStream out, Datapackage message, int correlationId, Codec codec) throws IOException {
+		ByteBuffer frame = encode(message, correlationId, codec);
+		out.write(frame.array(), 0, frame.limit());
+		out.flush();
+	}
+
+	/**
+	 * Reads the first frame of a connection from a stream, blocking until it is
+	 * complete
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @return The frame read
+	 * @throws IOException
+	 *             If reading fails or the frame is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message is unknown
+	 */
+	static Frame read(InputStream in) throws IOException, ClassNotFoundException {
+		// The frame may start the object stream of the connection
+		return read(new DataInputStream(in), new FrameCodec());
+	}
+
+	/**
+	 * Reads a single frame from a stream, blocking until it is complete
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @param frameCodec
+	 *            The codec of the connection to decode the frame with, or null
+	 *            if the frame does not depend on previous frames
+	 * @return The frame read
+	 * @throws IOException
+	 *             If reading fails or the frame is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message is unknown
+	 */
+	static Frame read(DataInputStream in, FrameCodec frameCodec) throws IOException, ClassNotFoundException {
+		int length = checkLength(in.readInt());
+		int correlationId = in.readInt();
+		int flags = in.readUnsignedByte();
+		byte[] payload = readPayload(in, length);
+		Object message = frameCodec != null ? frameCodec.decode(flags, payload, 0, length)
+				: decode(flags, payload, 0, length);
+		return new Frame(correlationId, message);
+	}
+
+	/**
+	 * Reads the payload of a frame. Payloads longer than
+	 * <code>MAX_FRAGMENT_LENGTH</code> are allocated as their bytes arrive, so a
+	 * peer announcing a large frame without sending it does not make the
+	 * receiver allocate its length.
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @param length
+	 *            The length of the payload, as validated by
+	 *            <code>checkLength</code>
+	 * @return The payload
+	 * @throws IOException
+	 *             If reading fails
+	 */
+	static byte[] readPayload(DataInputStream in, int length) throws IOException {
+		byte[] payload = new byte[Math.min(length, MAX_FRAGMENT_LENGTH)];
+		in.readFully(payload);
+		while (payload.length < length) {
+			int received = payload.length;
+			payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * received));
+			in.readFully(payload, received, payload.length - received);
+		}
+		return payload;
+	}
+
+	/**
+	 * Validates the length read from a frame header
+	 *
+	 * @param length
+	 *            The length read from the header
+	 * @return The length, if it is valid
+	 * @throws StreamCorruptedException
+	 *             If the length is negative or exceeds
+	 *             <code>MAX_FRAME_LENGTH</code>
+	 */
+	static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * A ByteArrayOutputStream reserving space for the frame header and handing
+	 * out its buffer without copying it
+	 */
+	static final class FrameOutputStream extends ByteArrayOutputStream {
+
+		private final int limit;
+
+		FrameOutputStream(int initialCapacity) {
+			this(initialCapacity, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * @param initialCapacity
+		 *            The initial capacity for the payload
+		 * @param limit
+		 *            The maximum length of the payload. Writing more throws a
+		 *            <code>FrameTooLargeException</code>.
+		 */
+		FrameOutputStream(int initialCapacity, int limit) {
+			super(initialCapacity + HEADER_LENGTH);
+			count = HEADER_LENGTH;
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) {
+			if (count - HEADER_LENGTH >= limit) {
+				throw new FrameTooLargeException();
+			}
+			super.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (count - HEADER_LENGTH > limit - len) {
+				throw new FrameTooLargeException();
+			}
+			super.write(b, off, len);
+		}
+
+		/**
+		 * @return A buffer wrapping the bytes written after the reserved header
+		 */
+		ByteBuffer payload() {
+			return ByteBuffer.wrap(buf, HEADER_LENGTH, count - HEADER_LENGTH);
+		}
+
+		/**
+		 * @return A buffer wrapping the written bytes, including the reserved header
+		 */
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+	}
+
+	/**
+	 * Thrown by a <code>FrameOutputStream</code> if the payload exceeds its
+	 * limit
+	 */
+	static final class FrameTooLargeException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * A received frame
+	 */
+	static final class Frame {
+
+		final int correlationId;
+		final Object message;
+		// Set by the receiver only, never decoded from the peer's data
+		final File file;
+
+		Frame(int correlationId, Object message) {
+			this(correlationId, message, null);
+		}
+
+		/**
+		 * @param file
+		 *            The file received with the message. It is deleted if the
+		 *            message cannot be delivered.
+		 */
+		Frame(int correlationId, Object message, File file) {
+			this.correlationId = correlationId;
+			this.message = message;
+			this.file = file;
+		}
+
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool executing the methods registered for incoming
+ * Datapackages. It is used by <code>Server</code> and <code>Client</code> by
+ * default, but can also be constructed with custom limits and passed to
+ * <code>setHandlerExecutor(ExecutorService executor)</code>.<br>
+ * Both the number of threads and the number of waiting handlers are limited.
+ * If both limits are reached, the rejection policy decides what happens to
+ * further handlers. The default policy rejects them, so the Datapackage is
+ * dropped and an error is logged. Handlers are never run on the thread
+ * receiving the Datapackages: it may be an event loop serving many
+ * connections, and a handler waiting there for a reply would wait for itself.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public class HandlerPool extends ThreadPoolExecutor {
+
+	/**
+	 * The default maximum number of handlers waiting for execution
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Constructs a handler pool with two threads per available processor, a
+	 * queue for <code>DEFAULT_QUEUE_CAPACITY</code> handlers and the abort
+	 * rejection policy
+	 *
+	 * @param name
+	 *            The prefix of the names of the pool's threads
+	 */
+	public HandlerPool(String name) {
+		this(name, 2 * Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY,
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Constructs a handler pool with all possible configurations
+	 *
+	 * @param name
+	 *            The prefix of the names of the pool's threads
+	 * @param threads
+	 *            The maximum number of handlers executed at the same time
+	 * @param queueCapacity
+	 *            The maximum number of handlers waiting for execution
+	 * @param rejectionPolicy
+	 *            What to do with a handler if all threads are busy and the queue
+	 *            is full. Do not use <code>CallerRunsPolicy</code>, it would run
+	 *            the handler on the thread receiving the Datapackages.
+	 */
+	public HandlerPool(final String name, int threads, int queueCapacity,
+			final RejectedExecutionHandler rejectionPolicy) {
+		super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity));
+		allowCoreThreadTimeOut(true);
+
+		setThreadFactory(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		setRejectedExecutionHandler(new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				rejectedCount.incrementAndGet();
+				rejectionPolicy.rejectedExecution(r, executor);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of handlers waiting for a free thread
+	 *
+	 * @return The number of handlers waiting
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * Returns the number of handlers passed to the rejection policy, because all
+	 * threads were busy and the queue was full or the pool was shut down
+	 *
+	 * @return The number of handlers rejected
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends heartbeats to the persistent connections of a server and evicts the
+ * idle ones, using a hashed timer wheel. Every connection is assigned to one
+ * of the wheel's slots when it is added, and the wheel's thread visits one slot
+ * per tick. So every connection is visited once per interval, but the pings
+ * are spread evenly across the interval instead of being sent to all
+ * connections at once.<br>
+ * A visited connection that has not received anything for longer than the
+ * idle timeout is evicted, otherwise it is sent a ping. Any received frame
+ * counts as a sign of life; the ping only makes sure the other side answers
+ * with a pong if it has nothing else to send. Closed connections are dropped
+ * from their slot when it is visited next, so they need not be removed.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class HeartbeatWheel implements Runnable {
+
+	/**
+	 * The number of slots of the wheel, i.e. the number of ticks per interval
+	 */
+	private static final int SLOTS = 64;
+
+	private final List<Set<Connection>> slots = new ArrayList<Set<Connection>>(SLOTS);
+	private final AtomicInteger nextSlot = new AtomicInteger();
+	private final ByteBuffer ping;
+	private final String pingId;
+	private final long intervalNanos;
+	private final long idleTimeoutNanos;
+	private final Listener listener;
+	private final Thread thread;
+
+	private volatile boolean running;
+
+	/**
+	 * Creates a heartbeat wheel and its thread. The wheel does not run until
+	 * <code>start()</code> is called.
+	 *
+	 * @param ping
+	 *            The ping frame, encoded without connection state
+	 * @param pingId
+	 *            The ID of the ping message
+	 * @param intervalNanos
+	 *            The time between two pings of a connection
+	 * @param idleTimeoutNanos
+	 *            The time without receiving anything after which a connection
+	 *            is evicted
+	 * @param listener
+	 *            Notified of evicted connections
+	 * @param name
+	 *            The name of the wheel's thread
+	 */
+	HeartbeatWheel(ByteBuffer ping, String pingId, long intervalNanos, long idleTimeoutNanos, Listener listener,
+			String name) {
+		for (int i = 0; i < SLOTS; i++) {
+			slots.add(ConcurrentHashMap.<Connection> newKeySet());
+		}
+		this.ping = ping;
+		this.pingId = pingId;
+		this.intervalNanos = intervalNanos;
+		this.idleTimeoutNanos = idleTimeoutNanos;
+		this.listener = listener;
+		this.thread = Threads.newThread(this, name, false, true);
+	}
+
+	/**
+	 * Starts the wheel's thread
+	 */
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel's thread. The connections are not closed by this method.
+	 */
+	void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Adds a connection to the slots visited in turn
+	 *
+	 * @param connection
+	 *            The connection to send heartbeats to
+	 */
+	void add(Connection connection) {
+		// Round robin rather than hashing, so the slots are equally full
+		int slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % SLOTS;
+		slots.get(slot).add(connection);
+	}
+
+	@Override
+	public void run() {
+		long tickNanos = Math.max(1, intervalNanos / SLOTS);
+		long deadline = System.nanoTime();
+		int cursor = 0;
+		while (running) {
+			visit(slots.get(cursor));
+			cursor = (cursor + 1) % SLOTS;
+
+			// Keep the pace, however long visiting took
+			deadline += tickNanos;
+			long remaining;
+			while (running && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+	}
+
+	/**
+	 * Pings the connections of a slot and evicts the idle ones
+	 */
+	private void visit(Set<Connection> slot) {
+		long now = System.nanoTime();
+		List<Connection> idle = null;
+		for (Iterator<Connection> it = slot.iterator(); it.hasNext();) {
+			Connection connection = it.next();
+			if (!connection.isOpen()) {
+				it.remove();
+			} else if (now - connection.lastReceived() > idleTimeoutNanos) {
+				it.remove();
+				if (idle == null) {
+					idle = new ArrayList<Connection>();
+				}
+				idle.add(connection);
+			} else {
+				try {
+					connection.sendHeartbeat(ping, pingId);
+				} catch (IOException e) {
+					// Closed meanwhile
+					it.remove();
+				}
+			}
+		}
+		if (idle != null) {
+			listener.connectionsIdle(idle);
+		}
+	}
+
+	/**
+	 * Notified when connections are evicted
+	 */
+	interface Listener {
+
+		/**
+		 * Called on the wheel's thread with the connections of a slot that have
+		 * been idle for longer than the timeout. They have been removed from the
+		 * wheel, but are still open.
+		 *
+		 * @param connections
+		 *            The idle connections
+		 */
+		void connectionsIdle(List<Connection> connections);
+
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.blogspot.debukkitsblog.net;
+
+/**
+ * Utility methods for the identifiers of Datapackages
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class Identifiers {
+
+	private Identifiers() {
+	}
+
+	/**
+	 * Normalizes an identifier for use as key of a handler table. Two identifiers
+	 * have the same normalized form if and only if they are equal ignoring case
+	 * (as defined by <code>String.equalsIgnoreCase</code>), so a handler can be
+	 * looked up with a single hash map access instead of comparing the identifier
+	 * with every registered one.
+	 *
+	 * @param identifier
+	 *            The identifier to normalize
+	 * @return The normalized identifier
+	 */
+	static String normalize(String identifier) {
+		int length = identifier.length();
+		int i = 0;
+		// Fast path: Nothing to do for identifiers without upper case ASCII letters
+		while (i < length) {
+			char c = identifier.charAt(i);
+			if (c >= 0x80 || (c >= 'A' && c <= 'Z')) {
+				break;
+			}
+			i++;
+		}
+		if (i == length) {
+			return identifier;
+		}
+
+		char[] chars = identifier.toCharArray();
+		for (; i < length; i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.blogspot.debukkitsblog.net;
+
+/**
+ * The priority of a message, set using <code>setPriority(Priority)</code> of
+ * a <code>Datapackage</code>. Every connection queues the messages of each
+ * priority separately and takes turns between the queues, each queue sending
+ * as many bytes per turn as its weight allows. Hence a message waits at most
+ * for one turn of the lower priorities, however many messages they have
+ * queued, while lower priorities are never starved completely.<br>
+ * Messages of the same priority are always received in the order they were
+ * sent, messages of different priorities may overtake each other.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+public enum Priority {
+
+	/**
+	 * Messages keeping the connection alive, e.g. heartbeats
+	 */
+	CONTROL(8),
+
+	/**
+	 * Requests and replies someone is waiting for. The default for every
+	 * message.
+	 */
+	INTERACTIVE(4),
+
+	/**
+	 * Messages of which many may be queued, e.g. large broadcasts, and files
+	 */
+	BULK(1);
+
+	/**
+	 * The share of the bandwidth the priority gets while all priorities have
+	 * messages queued, relative to the other priorities
+	 */
+	final int weight;
+
+	Priority(int weight) {
+		this.weight = weight;
+	}
+
+}
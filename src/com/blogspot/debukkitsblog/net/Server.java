@@ -1,43 +1,111 @@
 package com.blogspot.debukkitsblog.net;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-
-import javax.net.ssl.SSLServerSocketFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.blogspot.debukkitsblog.crypt.DHKeyFactory;
+import com.blogspot.debukkitsblog.crypt.DHKeyPool;
 
 /**
  * A very simple-to-use Server class for Java network applications<br>
  * originally created on March 9, 2016 in Horstmar, Germany
  * 
  * @author Leonard Bienbeck
- * @version 2.3.3
+ * @version 2.4.0
  */
 public abstract class Server {
 
-	protected HashMap<String, Executable> idMethods = new HashMap<String, Executable>();
+	protected Map<String, Executable> idMethods = new ConcurrentHashMap<String, Executable>();
+	protected ThreadLocal<Integer> replyCorrelationId = new ThreadLocal<Integer>();
+	protected ExecutorService handlerExecutor;
+	protected AtomicLong rejectedHandlerCount = new AtomicLong();
 
 	protected ServerSocket server;
 	protected int port;
-	protected ArrayList<RemoteClient> clients;
-	protected ArrayList<RemoteClient> toBeDeleted;
+	protected ConcurrentMap<String, RemoteClient> clients;
+	protected ConcurrentMap<Socket, RemoteClient> clientsBySocket;
+	protected ConcurrentMap<String, Set<RemoteClient>> groups;
 
 	protected Thread listeningThread;
 
+	protected ServerSocketChannel serverChannel;
+	protected EventLoop[] eventLoops;
+	protected Map<Socket, Connection> connections = new ConcurrentHashMap<Socket, Connection>();
+	protected int eventLoopCount = Runtime.getRuntime().availableProcessors();
+	protected int nextEventLoop;
+
 	protected boolean autoRegisterEveryClient;
 	protected boolean secureMode;
+	protected boolean nioMode;
+	protected boolean virtualThreads;
 
 	protected boolean muted;
+	protected Codec codec = Codec.SERIALIZATION;
 	protected long pingInterval = 30000;
+	protected long idleTimeout;
+	protected HeartbeatWheel heartbeat;
+
+	protected BackpressurePolicy backpressurePolicy = BackpressurePolicy.DISCONNECT;
+	protected long lowWatermark = 8 * 1024 * 1024;
+	protected long highWatermark = 16 * 1024 * 1024;
+
+	protected int batchMessages = 1;
+	protected int batchBytes = 1;
+	protected long batchDelayMicros;
+
+	protected boolean compression;
+	protected int compressionThreshold = 512;
+	protected final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	protected boolean encryption;
+	protected DHKeyPool keyPool;
+	protected SSLContext sslContext;
+
+	protected File fileDirectory;
+	protected long maxFileLength = 1024L * 1024 * 1024;
 
 	protected static final String INTERNAL_LOGIN_ID = "_INTERNAL_LOGIN_";
+	protected static final String INTERNAL_LOGIN_ACK_ID = "_INTERNAL_LOGIN_ACK_";
+	protected static final String INTERNAL_PING_ID = "_INTERNAL_PING_";
+	protected static final String INTERNAL_PONG_ID = "_INTERNAL_PONG_";
+
+	/**
+	 * The number of incoming connections the operating system queues until they
+	 * are accepted. Large enough for bursts of clients connecting at once.
+	 */
+	protected static final int ACCEPT_BACKLOG = 4096;
 
 	/**
 	 * Constructs a simple server listening on the given port. Every client that
@@ -68,25 +136,25 @@ public abstract class Server {
 	 *            Whether SSL should be used to establish a secure connection
 	 */
 	public Server(int port, boolean autoRegisterEveryClient, boolean keepConnectionAlive, boolean useSSL) {
-		this.clients = new ArrayList<RemoteClient>();
+		this.clients = new ConcurrentHashMap<String, RemoteClient>();
+		this.clientsBySocket = new ConcurrentHashMap<Socket, RemoteClient>();
+		this.groups = new ConcurrentHashMap<String, Set<RemoteClient>>();
 		this.port = port;
 		this.autoRegisterEveryClient = autoRegisterEveryClient;
 		this.muted = false;
 
-		if (secureMode = useSSL) {
-			System.setProperty("javax.net.ssl.keyStore", "ssc.store");
-			System.setProperty("javax.net.ssl.keyStorePassword", "SimpleServerClient");
-		}
+		this.secureMode = useSSL;
 		if (autoRegisterEveryClient) {
 			registerLoginMethod();
 		}
 		preStart();
 
-		start();
-
+		// Before accepting connections, so every client logging in gets heartbeats
 		if (keepConnectionAlive) {
 			startPingThread();
 		}
+
+		start();
 	}
 
 	/**
@@ -114,24 +182,326 @@ public abstract class Server {
 	}
 
 	/**
-	 * Starts the thread sending a dummy package every <i>pingInterval</i> seconds.
-	 * Adjust the interval using <code>setPingInterval(int seconds)</code>.
+	 * Sets the time after which a logged in client that has sent nothing, not
+	 * even the answer to a ping, is considered dead. Its connection is closed and
+	 * the client removed. Default is three ping intervals. Has no effect if the
+	 * connection is not kept alive.<br>
+	 * <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param seconds
+	 *            The time in seconds, at least one ping interval
 	 */
-	protected void startPingThread() {
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
+	public void setIdleTimeout(int seconds) {
+		this.idleTimeout = seconds * 1000L;
+	}
 
-				while (server != null) {
-					try {
-						Thread.sleep(pingInterval);
-					} catch (InterruptedException e) {
-					}
-					broadcastMessage(new Datapackage("_INTERNAL_PING_", "OK"));
-				}
+	/**
+	 * Enables or disables the non-blocking transport. Instead of a listening
+	 * thread accepting one connection at a time, a small number of event loops
+	 * multiplex all connections using a <code>Selector</code>. Handlers are
+	 * executed exactly as with the blocking transport, but the Socket passed to
+	 * them must not be used for I/O directly; use <code>sendReply</code> instead.
+	 * <br>
+	 * <b>Must be called in <code>preStart()</code></b>, the transport cannot be
+	 * changed once the server has been started. SSL is supported by both
+	 * transports.
+	 * 
+	 * @param nioMode
+	 *            true if the non-blocking transport should be used
+	 */
+	public void setNioMode(boolean nioMode) {
+		this.nioMode = nioMode;
+	}
 
-			}
-		}).start();
+	/**
+	 * Enables or disables virtual threads. Every connection of the blocking
+	 * transport is then served by virtual threads instead of platform threads,
+	 * and every handler is executed on its own virtual thread instead of the
+	 * bounded <code>HandlerPool</code>, so handlers may block without limiting
+	 * the number of connections served. The event loops of the non-blocking
+	 * transport remain platform threads.<br>
+	 * Requires Java 21 or later. <b>Must be called in
+	 * <code>preStart()</code></b>.
+	 * 
+	 * @param virtualThreads
+	 *            true if virtual threads should be used
+	 * @throws UnsupportedOperationException
+	 *             If the running Java version does not support virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !Threads.isVirtualSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Sets the number of event loops (threads) used by the non-blocking transport.
+	 * Default is the number of available processors. <b>Must be called in
+	 * <code>preStart()</code></b>.
+	 * 
+	 * @param eventLoopCount
+	 *            The number of event loops
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		if (eventLoopCount < 1) {
+			throw new IllegalArgumentException("There must be at least one event loop");
+		}
+		this.eventLoopCount = eventLoopCount;
+	}
+
+	/**
+	 * Sets the codec used to encode the Datapackages sent by this server. Default is
+	 * <code>Codec.SERIALIZATION</code>. Incoming Datapackages are always decoded
+	 * using the codec they were encoded with, so the codec can be chosen
+	 * independently on each side. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param codec
+	 *            The codec to encode Datapackages with
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets what happens to messages for a client that does not receive them as
+	 * fast as they are sent. Default is <code>BackpressurePolicy.DISCONNECT</code>,
+	 * so a client that stopped reading cannot hold up the others; it is removed
+	 * and expected to connect again. <b>Must be called in
+	 * <code>preStart()</code></b>.
+	 * 
+	 * @param backpressurePolicy
+	 *            The policy applied when a client exceeds the high watermark
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * Sets the limits for the bytes buffered per client while waiting for
+	 * transmission. A client whose buffer would exceed the high watermark is
+	 * throttled according to the backpressure policy until its buffer has been
+	 * drained below the low watermark. Default is 8 MB and 16 MB. <b>Must be called
+	 * in <code>preStart()</code></b>.
+	 * 
+	 * @param lowWatermark
+	 *            The number of bytes below which a client is no longer throttled
+	 * @param highWatermark
+	 *            The number of bytes above which a client is throttled
+	 */
+	public void setOutboundWatermarks(long lowWatermark, long highWatermark) {
+		if (lowWatermark < 0 || lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high");
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * Enables batching of outgoing messages. Messages sent to the same client
+	 * shortly after each other are collected and written together, which saves
+	 * system calls and network packets if many small messages are sent. A batch
+	 * is written as soon as it contains <i>maxMessages</i> messages or
+	 * <i>maxBytes</i> bytes, or when its first message has been waiting for
+	 * <i>maxDelayMicros</i> microseconds. Batching is disabled by default, a
+	 * delay of 0 disables it again. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param maxMessages
+	 *            The number of messages completing a batch
+	 * @param maxBytes
+	 *            The number of bytes completing a batch
+	 * @param maxDelayMicros
+	 *            The maximum time a message waits for further messages, in
+	 *            microseconds
+	 */
+	public void setWriteBatching(int maxMessages, int maxBytes, long maxDelayMicros) {
+		if (maxMessages < 1 || maxBytes < 1 || maxDelayMicros < 0) {
+			throw new IllegalArgumentException("Batch limits must be positive");
+		}
+		this.batchMessages = maxMessages;
+		this.batchBytes = maxBytes;
+		this.batchDelayMicros = maxDelayMicros;
+	}
+
+	/**
+	 * Enables or disables compression. If enabled, compression is offered to
+	 * every client logging in, and used for the connection if the client has
+	 * enabled it, too. Messages are compressed if they reach the compression
+	 * threshold. The compressor of a connection remembers the messages sent
+	 * before, so repeated similar messages compress well. Broadcasts are
+	 * compressed only once for all recipients, without that context.<br>
+	 * Compressed messages other than broadcasts cannot be discarded by the
+	 * backpressure policy. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param compression
+	 *            true if messages should be compressed
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets the minimum size of an encoded message to be compressed. Default is
+	 * 512 bytes. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param compressionThreshold
+	 *            The minimum size in bytes
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Enables or disables encryption. If enabled, every client logging in with
+	 * encryption enabled, too, agrees on a session key with the server using a
+	 * Diffie-Hellman key exchange, and everything sent using its connection
+	 * afterwards is encrypted and authenticated using AES-GCM. The key pairs of
+	 * the server are computed in advance by a background thread, see
+	 * <code>DHKeyPool</code>.<br>
+	 * Clients not enabling encryption and messages sent without logging in are
+	 * still accepted unencrypted. The key exchange does not prove the identity
+	 * of the server, so use SSL if clients must not be fooled by a man in the
+	 * middle. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param encryption
+	 *            true if connections should be encrypted
+	 */
+	public void setEncryption(boolean encryption) {
+		this.encryption = encryption;
+	}
+
+	/**
+	 * Sets the <code>SSLContext</code> providing the key of the server if SSL is
+	 * used. By default, the key is loaded from the key store
+	 * <i>ssc.store</i>. The context belongs to this server only, no system
+	 * properties are changed. Its session cache lets clients reconnecting
+	 * resume their TLS session with an abbreviated handshake.
+	 * <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param sslContext
+	 *            The context to create the secure connections with
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Returns the counters describing how many bytes compression has saved and
+	 * how much time it has taken, summed up over all connections
+	 * 
+	 * @return The compression statistics of this server
+	 */
+	public CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
+
+	/**
+	 * Lets logged in clients send files, and sets the directory they are stored
+	 * in. By default, the server does not receive files. <b>Must be called in
+	 * <code>preStart()</code></b>.
+	 * 
+	 * @param fileDirectory
+	 *            The directory to store received files in, or null to not
+	 *            receive files
+	 */
+	public void setFileDirectory(File fileDirectory) {
+		this.fileDirectory = fileDirectory;
+	}
+
+	/**
+	 * Sets the maximum length of a file sent by a client. A client sending a
+	 * longer file is disconnected. Default is 1 GB. <b>Must be called in
+	 * <code>preStart()</code></b>.
+	 * 
+	 * @param maxFileLength
+	 *            The maximum length of a received file in bytes
+	 */
+	public void setMaxFileLength(long maxFileLength) {
+		this.maxFileLength = maxFileLength;
+	}
+
+	/**
+	 * Sets the executor running the methods registered for incoming Datapackages.
+	 * By default, a bounded <code>HandlerPool</code> is used, so a burst of
+	 * messages does not create a thread per message. The executor must not run
+	 * handlers on the calling thread, which receives the Datapackages. <b>Must be called in <code>preStart()</code></b>.
+	 * 
+	 * @param handlerExecutor
+	 *            The executor to run handlers with
+	 */
+	public void setHandlerExecutor(ExecutorService handlerExecutor) {
+		this.handlerExecutor = handlerExecutor;
+	}
+
+	/**
+	 * Returns the executor running the methods registered for incoming
+	 * Datapackages
+	 * 
+	 * @return The executor running handlers
+	 */
+	public ExecutorService getHandlerExecutor() {
+		return handlerExecutor;
+	}
+
+	/**
+	 * Returns the number of received Datapackages waiting for their handler to be
+	 * executed
+	 * 
+	 * @return The number of handlers waiting, or -1 if the executor does not
+	 *         provide this information
+	 */
+	public int getHandlerQueueDepth() {
+		if (handlerExecutor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) handlerExecutor).getQueue().size();
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of handlers rejected by the executor, because it was
+	 * saturated
+	 * 
+	 * @return The number of handlers rejected
+	 */
+	public long getRejectedHandlerCount() {
+		if (handlerExecutor instanceof HandlerPool) {
+			// Counts the handlers it rejected with an exception as well
+			return ((HandlerPool) handlerExecutor).getRejectedCount();
+		}
+		return rejectedHandlerCount.get();
+	}
+
+	/**
+	 * Starts the thread sending a ping package to every logged in client every
+	 * <i>pingInterval</i> seconds. The pings are spread across the interval, see
+	 * <code>HeartbeatWheel</code>. Clients answer with a pong, so a client that
+	 * has sent nothing for the idle timeout is dead and gets removed. Adjust the
+	 * interval using <code>setPingInterval(int seconds)</code> and the timeout
+	 * using <code>setIdleTimeout(int seconds)</code>. The thread ends when the
+	 * server is stopped.
+	 */
+	protected void startPingThread() {
+		ByteBuffer ping;
+		try {
+			ping = Frames.encode(new Datapackage(INTERNAL_PING_ID, "OK"), Frames.NO_CORRELATION, codec);
+		} catch (IOException e) {
+			onLogError("[Server] Error encoding ping: " + e.getMessage());
+			return;
+		}
+		long timeout = idleTimeout > 0 ? Math.max(idleTimeout, pingInterval) : 3 * pingInterval;
+		heartbeat = new HeartbeatWheel(ping, INTERNAL_PING_ID, TimeUnit.MILLISECONDS.toNanos(pingInterval),
+				TimeUnit.MILLISECONDS.toNanos(timeout), new HeartbeatWheel.Listener() {
+					@Override
+					public void connectionsIdle(List<Connection> idle) {
+						for (Connection connection : idle) {
+							onLog("[Server] Connection to " + connection.socket().getRemoteSocketAddress()
+									+ " idle, closing");
+							// The reading side notices the closed connection and removes the client
+							connection.close();
+						}
+					}
+				}, "Server-Heartbeat");
+		heartbeat.start();
 	}
 
 	/**
@@ -139,68 +509,437 @@ public abstract class Server {
 	 */
 	protected void startListening() {
 		if (listeningThread == null && server != null) {
-			listeningThread = new Thread(new Runnable() {
+			listeningThread = Threads.newThread(new Runnable() {
 
 				@Override
 				public void run() {
-					while (server != null) {
+					while (server != null && !server.isClosed()) {
 
 						try {
 							onLog("[Server] Waiting for connection" + (secureMode ? " using SSL..." : "..."));
 							final Socket tempSocket = server.accept();
+							final SocketConnection connection = new SocketConnection(tempSocket);
+							connection.setBackpressure(backpressurePolicy, lowWatermark, highWatermark, throttleListener);
+							connection.setBatching(batchMessages, batchBytes, TimeUnit.MICROSECONDS.toNanos(batchDelayMicros));
+							connections.put(tempSocket, connection);
+							if (server.isClosed()) {
+								// Accepted while stopping, after stop() has closed the connections
+								connection.close();
+								break;
+							}
 
-							ObjectInputStream ois = new ObjectInputStream(tempSocket.getInputStream());
-							Object raw = ois.readObject();
-
-							if (raw instanceof Datapackage) {
-								final Datapackage msg = (Datapackage) raw;
-								onLog("[Server] Message received: " + msg);
-
-								for (final String current : idMethods.keySet()) {
-									if (msg.id().equalsIgnoreCase(current)) {
-										onLog("[Server] Executing method for identifier '" + msg.id() + "'");
-										new Thread(new Runnable() {
-											public void run() {
-												// Run the method registered for the ID of this Datapackage
-												idMethods.get(current).run(msg, tempSocket);
-												// and close the temporary socket if it is not longer needed
-												if (!msg.id().equals(INTERNAL_LOGIN_ID)) {
-													try {
-														tempSocket.close();
-													} catch (Exception e) {
-														e.printStackTrace();
-													}
-												}
-											}
-										}).start();
-										break;
+							if (virtualThreads) {
+								// Don't let a slow connection delay accepting the next one
+								Threads.newThread(new Runnable() {
+									@Override
+									public void run() {
+										handleConnection(connection);
 									}
-								}
-
+								}, "Connection " + tempSocket.getRemoteSocketAddress(), true, true).start();
+							} else {
+								handleConnection(connection);
 							}
 
-						} catch (EOFException e) {
-							e.printStackTrace();
 						} catch (IllegalBlockingModeException e) {
 							e.printStackTrace();
 						} catch (IOException e) {
-							e.printStackTrace();
-						} catch (ClassNotFoundException e) {
-							e.printStackTrace();
+							if (!server.isClosed()) {
+								e.printStackTrace();
+							}
 						}
 
 					}
 				}
 
-			});
+			}, "Server-Listener", false, false);
 
 			listeningThread.start();
 		}
 	}
 
+	/**
+	 * Reads the first message of a newly accepted connection. If it is a login,
+	 * the connection is kept open and read from until it fails.
+	 * 
+	 * @param connection
+	 *            The accepted connection
+	 */
+	protected void handleConnection(SocketConnection connection) {
+		Socket tempSocket = connection.socket();
+		try {
+			Frames.Frame frame;
+			try {
+				frame = connection.read();
+			} catch (IOException e) {
+				closeTemporarySocket(tempSocket);
+				throw e;
+			}
+
+			if (frame.message instanceof Datapackage) {
+				Datapackage msg = (Datapackage) frame.message;
+				boolean login = msg.id().equals(INTERNAL_LOGIN_ID);
+				if (login && !acceptLogin(connection, msg)) {
+					closeTemporarySocket(tempSocket);
+					return;
+				}
+				handleMessage(msg, tempSocket, frame.correlationId, !login);
+
+				// Logged in clients send further messages using the same connection
+				if (login) {
+					startReading(connection);
+				}
+			}
+
+		} catch (EOFException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts a thread reading messages from the persistent connection of a client
+	 * that has logged in and a thread writing the messages queued for it. If the
+	 * connection fails, the client is removed.
+	 * 
+	 * @param connection
+	 *            The connection the client logged in with
+	 */
+	protected void startReading(final SocketConnection connection) {
+		final Socket socket = connection.socket();
+		connection.startWriting("Writer " + socket.getRemoteSocketAddress(), virtualThreads);
+		Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (connection.isOpen()) {
+						Frames.Frame frame = connection.read();
+						if (frame.message instanceof Datapackage) {
+							handleFrame(frame, socket);
+						}
+					}
+				} catch (Exception e) {
+					onLog("[Server] Connection to " + socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+				}
+
+				connection.close();
+				connections.remove(socket);
+				removeClient(socket);
+			}
+		}, "Reader " + socket.getRemoteSocketAddress(), virtualThreads, false).start();
+	}
+
+	/**
+	 * Executes the method registered for the ID of a received message using the
+	 * handler executor. Temporary connections are closed as soon as the method has
+	 * returned.
+	 * 
+	 * @param msg
+	 *            The message received
+	 * @param socket
+	 *            The socket the message was received from
+	 * @param correlationId
+	 *            The correlation ID of the request, used to route the reply back
+	 *            to the waiting sender
+	 * @param temporary
+	 *            Whether the connection is closed after the method has returned
+	 * @return true, if the method will be executed
+	 */
+	protected boolean handleMessage(final Datapackage msg, final Socket socket, final int correlationId,
+			final boolean temporary) {
+		if (msg.id().equals(INTERNAL_PONG_ID)) {
+			// Only proves the client is alive, see HeartbeatWheel
+			return false;
+		}
+		onLog("[Server] Message received: " + msg);
+
+		final Executable executable = idMethods.get(Identifiers.normalize(msg.id()));
+		if (executable == null) {
+			return false;
+		}
+
+		onLog("[Server] Executing method for identifier '" + msg.id() + "'");
+		Runnable handler = new Runnable() {
+			public void run() {
+				// Run the method registered for the ID of this Datapackage
+				replyCorrelationId.set(correlationId);
+				try {
+					executable.run(msg, socket);
+				} finally {
+					replyCorrelationId.remove();
+				}
+				// and close the temporary socket if it is not longer needed
+				if (temporary) {
+					closeTemporarySocket(socket);
+				}
+			}
+		};
+
+		try {
+			handlerExecutor.execute(handler);
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejectedHandlerCount.incrementAndGet();
+			onLogError("[Server] Handler executor saturated, dropping message '" + msg.id() + "'");
+			if (temporary) {
+				closeTemporarySocket(socket);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Executes the method registered for the ID of a message received from a
+	 * logged in client, deleting the file received with it if there is none or
+	 * the handler executor is saturated
+	 * 
+	 * @param frame
+	 *            The frame received
+	 * @param socket
+	 *            The socket the frame was received from
+	 */
+	private void handleFrame(Frames.Frame frame, Socket socket) {
+		if (!handleMessage((Datapackage) frame.message, socket, frame.correlationId, false) && frame.file != null) {
+			FileReceiver.discard(frame.file);
+		}
+	}
+
+	/**
+	 * Closes a temporary connection after the reply has been sent
+	 * 
+	 * @param socket
+	 *            The socket of the connection
+	 */
+	protected void closeTemporarySocket(Socket socket) {
+		Connection connection = connections.remove(socket);
+		if (connection != null) {
+			connection.closeWhenFlushed();
+			return;
+		}
+
+		try {
+			socket.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens the non-blocking server channel and starts the event loops serving
+	 * it. The first event loop accepts new connections and distributes them
+	 * among all event loops.
+	 */
+	protected void startEventLoops() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+			serverChannel.configureBlocking(false);
+			server = serverChannel.socket();
+
+			eventLoops = new EventLoop[eventLoopCount];
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop("Server-EventLoop-" + i);
+				eventLoops[i].start();
+			}
+		} catch (IOException e) {
+			onLogError("Error opening ServerSocketChannel");
+			e.printStackTrace();
+			return;
+		}
+
+		final EventLoop acceptLoop = eventLoops[0];
+		acceptLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serverChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, acceptHandler);
+				} catch (IOException e) {
+					onLogError("Error registering ServerSocketChannel");
+					e.printStackTrace();
+				}
+			}
+		});
+		onLog("[Server] Waiting for connections using " + eventLoops.length + " event loops" + (secureMode ? " and SSL..." : "..."));
+	}
+
+	/**
+	 * Accepts pending connections on the non-blocking server channel
+	 */
+	private final EventLoop.Handler acceptHandler = new EventLoop.Handler() {
+		@Override
+		public void handle(SelectionKey key) throws IOException {
+			SocketChannel channel;
+			while (true) {
+				try {
+					if ((channel = serverChannel.accept()) == null) {
+						return;
+					}
+				} catch (IOException e) {
+					// e.g. too many open files, try again on the next selection
+					onLogError("[Server] Error accepting connection: " + e.getMessage());
+					return;
+				}
+
+				try {
+					EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop++, eventLoops.length)];
+					TlsSession tls = null;
+					if (secureMode) {
+						SSLEngine engine = sslContext.createSSLEngine();
+						engine.setUseClientMode(false);
+						tls = new TlsSession(channel, engine);
+					}
+					ChannelConnection connection = new ChannelConnection(channel, tls, eventLoop, channelListener);
+					connection.setBackpressure(backpressurePolicy, lowWatermark, highWatermark, throttleListener);
+					connection.setBatching(batchMessages, batchBytes, TimeUnit.MICROSECONDS.toNanos(batchDelayMicros));
+					connections.put(connection.socket(), connection);
+					connection.register();
+				} catch (IOException e) {
+					e.printStackTrace();
+					channel.close();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			// The server channel is closed by stop()
+		}
+	};
+
+	/**
+	 * Receives the messages of connections served by the event loops
+	 */
+	private final ChannelConnection.Listener channelListener = new ChannelConnection.Listener() {
+		@Override
+		public void frameReceived(ChannelConnection connection, Frames.Frame frame) {
+			if (frame.message instanceof Datapackage) {
+				Datapackage msg = (Datapackage) frame.message;
+				if (msg.id().equals(INTERNAL_LOGIN_ID) && !acceptLogin(connection, msg)) {
+					closeTemporarySocket(connection.socket());
+					return;
+				}
+				if (connection.isPersistent()) {
+					handleFrame(frame, connection.socket());
+				} else {
+					handleMessage(msg, connection.socket(), frame.correlationId, true);
+				}
+			}
+		}
+
+		@Override
+		public void connectionClosed(ChannelConnection connection) {
+			connections.remove(connection.socket());
+			removeClient(connection.socket());
+		}
+	};
+
+	/**
+	 * Lets a connection receive files into the file directory, reporting the
+	 * progress to <code>onFileProgress</code>
+	 * 
+	 * @param connection
+	 *            The connection a client has logged in with
+	 */
+	private void receiveFiles(Connection connection) {
+		final Socket socket = connection.socket();
+		connection.receiveFiles(fileDirectory, maxFileLength, new FileProgressListener() {
+			@Override
+			public void progressed(String identifier, long transferred, long length) {
+				onFileProgress(socket, identifier, transferred, length);
+			}
+		});
+	}
+
+	/**
+	 * Keeps the connection a client logged in with open and enables the
+	 * capabilities both sides support. The capabilities enabled are sent back to
+	 * the client if it has offered any. If the client has offered encryption,
+	 * the messages received after the login are decrypted, and the messages
+	 * sent after the acknowledgement are encrypted.
+	 * 
+	 * @param connection
+	 *            The connection the login message has been received on
+	 * @param msg
+	 *            The login message, optionally followed by the capabilities of
+	 *            the client
+	 * @return false, if the key exchange has failed and the connection is to be
+	 *         closed
+	 */
+	private boolean acceptLogin(final Connection connection, Datapackage msg) {
+		connection.setPersistent();
+		List<Object> capabilities = new ArrayList<Object>();
+		if (compression && msg.contains(Frames.COMPRESSION_DEFLATE)) {
+			connection.frameCodec.enableCompression(compressionThreshold, compressionStatistics);
+			capabilities.add(Frames.COMPRESSION_DEFLATE);
+		}
+
+		Runnable afterWritten = null;
+		int offer = msg.indexOf(Frames.ENCRYPTION_DH_AES_GCM);
+		if (encryption && offer >= 0 && offer + 1 < msg.size() && msg.get(offer + 1) instanceof byte[]) {
+			try {
+				DHKeyFactory exchange = keyPool.take();
+				exchange.setRemotePublicKey(new BigInteger((byte[]) msg.get(offer + 1)));
+				final SessionCipher sending = SessionCipher.forSending(exchange, false);
+				// The client encrypts everything after the login
+				connection.decryptReceived(SessionCipher.forReceiving(exchange, false));
+				capabilities.add(Frames.ENCRYPTION_DH_AES_GCM);
+				capabilities.add(exchange.getPublicKey().toByteArray());
+				afterWritten = new Runnable() {
+					@Override
+					public void run() {
+						// The client decrypts everything after the acknowledgement
+						connection.encryptSent(sending);
+					}
+				};
+			} catch (GeneralSecurityException e) {
+				onLogError("[Server] Error agreeing session key: " + e.getMessage());
+				return false;
+			} catch (IllegalArgumentException e) {
+				onLogError("[Server] Error agreeing session key: " + e.getMessage());
+				return false;
+			}
+		}
+
+		// Clients offering nothing don't expect an acknowledgement
+		if (!capabilities.isEmpty() || offer >= 0) {
+			try {
+				Datapackage ack = new Datapackage(INTERNAL_LOGIN_ACK_ID, capabilities.toArray());
+				ack.setPriority(Priority.CONTROL);
+				connection.send(ack, Frames.NO_CORRELATION, codec, afterWritten);
+			} catch (IOException e) {
+				onLogError("[Server] Error acknowledging login: " + e.getMessage());
+				return false;
+			}
+		}
+		// After the acknowledgement, which must be the first message the client receives
+		if (heartbeat != null) {
+			heartbeat.add(connection);
+		}
+		if (fileDirectory != null) {
+			receiveFiles(connection);
+		}
+		return true;
+	}
+
+	/**
+	 * Reports clients exceeding their high watermark
+	 */
+	private final Connection.ThrottleListener throttleListener = new Connection.ThrottleListener() {
+		@Override
+		public void connectionThrottled(Connection connection) {
+			RemoteClient remoteClient = clientsBySocket.get(connection.socket());
+			if (remoteClient != null) {
+				onClientThrottled(remoteClient);
+			}
+		}
+	};
+
 	/**
 	 * Sends a reply to client. This method should only be called from within the
-	 * run-Method of an <code>Executable</code> implementation.
+	 * run-Method of an <code>Executable</code> implementation, because the reply
+	 * is matched to the request being handled by the calling thread.
 	 * 
 	 * @param toSocket
 	 *            The socket the message should be delivered to
@@ -208,9 +947,11 @@ public abstract class Server {
 	 *            The content of the message to be delivered. The ID of this
 	 *            Datapackage will be "REPLY".
 	 */
-	public synchronized void sendReply(Socket toSocket, Object... datapackageContent) {
+	public void sendReply(Socket toSocket, Object... datapackageContent) {
+		Integer correlationId = replyCorrelationId.get();
 		sendMessage(new RemoteClient(UUID.randomUUID().toString(), toSocket),
-				new Datapackage("REPLY", datapackageContent));
+				new Datapackage("REPLY", datapackageContent),
+				correlationId != null ? correlationId : Frames.NO_CORRELATION);
 	}
 
 	/**
@@ -223,7 +964,7 @@ public abstract class Server {
 	 * @param datapackageContent
 	 *            The content of the message
 	 */
-	public synchronized void sendMessage(String remoteClientId, String datapackageId, Object... datapackageContent) {
+	public void sendMessage(String remoteClientId, String datapackageId, Object... datapackageContent) {
 		sendMessage(remoteClientId, new Datapackage(datapackageId, datapackageContent));
 	}
 
@@ -235,11 +976,10 @@ public abstract class Server {
 	 * @param message
 	 *            The message
 	 */
-	public synchronized void sendMessage(String remoteClientId, Datapackage message) {
-		for (RemoteClient current : clients) {
-			if (current.getId().equals(remoteClientId)) {
-				sendMessage(current, message);
-			}
+	public void sendMessage(String remoteClientId, Datapackage message) {
+		RemoteClient remoteClient = clients.get(remoteClientId);
+		if (remoteClient != null) {
+			sendMessage(remoteClient, message);
 		}
 	}
 
@@ -253,7 +993,7 @@ public abstract class Server {
 	 * @param datapackageContent
 	 *            The content of the message
 	 */
-	public synchronized void sendMessage(RemoteClient remoteClient, String datapackageId,
+	public void sendMessage(RemoteClient remoteClient, String datapackageId,
 			Object... datapackageContent) {
 		sendMessage(remoteClient, new Datapackage(datapackageId, datapackageContent));
 	}
@@ -266,25 +1006,189 @@ public abstract class Server {
 	 * @param message
 	 *            The message
 	 */
-	public synchronized void sendMessage(RemoteClient remoteClient, Datapackage message) {
+	public void sendMessage(RemoteClient remoteClient, Datapackage message) {
+		sendMessage(remoteClient, message, Frames.NO_CORRELATION);
+	}
+
+	/**
+	 * Sends a message to a client
+	 * 
+	 * @param remoteClient
+	 *            The target client
+	 * @param message
+	 *            The message
+	 * @param correlationId
+	 *            The correlation ID of the request the message replies to, or
+	 *            <code>Frames.NO_CORRELATION</code>
+	 * @return true, if the message has been sent, false if the client has been
+	 *         removed because of a connection problem
+	 */
+	protected boolean sendMessage(RemoteClient remoteClient, Datapackage message, int correlationId) {
 		try {
 			// Nachricht senden
 			if (!remoteClient.getSocket().isConnected()) {
 				throw new Exception("Socket not connected.");
 			}
-			ObjectOutputStream out = new ObjectOutputStream(remoteClient.getSocket().getOutputStream());
-			out.writeObject(message);
+			Connection connection = remoteClient.getConnection();
+			if (connection != null) {
+				connection.send(message, correlationId, codec);
+			} else {
+				Frames.write(remoteClient.getSocket().getOutputStream(), message, correlationId, codec);
+			}
+			return true;
 		} catch (Exception e) {
 			onLogError("[SendMessage] Fehler: " + e.getMessage());
 
-			// Bei Fehler: Socket aus Liste loeschen
-			if (toBeDeleted != null) {
-				toBeDeleted.add(remoteClient);
+			// Bei Fehler: Client aus Liste loeschen
+			removeClient(remoteClient);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends an encoded frame to a client
+	 * 
+	 * @param remoteClient
+	 *            The target client
+	 * @param frame
+	 *            The frame, encoded without connection state. It is not modified
+	 *            and can be sent to several clients.
+	 * @param messageId
+	 *            The ID of the encoded message
+	 * @param priority
+	 *            The priority of the encoded message
+	 * @return true, if the frame has been sent, false if the client has been
+	 *         removed because of a connection problem
+	 */
+	protected boolean sendFrame(RemoteClient remoteClient, ByteBuffer frame, String messageId, Priority priority) {
+		try {
+			// Nachricht senden
+			if (!remoteClient.getSocket().isConnected()) {
+				throw new Exception("Socket not connected.");
+			}
+			Connection connection = remoteClient.getConnection();
+			if (connection != null) {
+				connection.send(frame, messageId, priority);
 			} else {
-				clients.remove(remoteClient);
-				onClientRemoved(remoteClient);
+				OutputStream out = remoteClient.getSocket().getOutputStream();
+				out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+				out.flush();
+			}
+			return true;
+		} catch (Exception e) {
+			onLogError("[SendMessage] Fehler: " + e.getMessage());
+
+			// Bei Fehler: Client aus Liste loeschen
+			removeClient(remoteClient);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a file to a client. See
+	 * <code>sendFile(RemoteClient remoteClient, String identifier, File file, FileProgressListener listener)</code>.
+	 * 
+	 * @param remoteClient
+	 *            The target client
+	 * @param identifier
+	 *            The identifier of the Datapackage announcing the received file
+	 * @param file
+	 *            The file to send
+	 * @return A future completed once the file has been transmitted
+	 */
+	public CompletableFuture<Void> sendFile(RemoteClient remoteClient, String identifier, File file) {
+		return sendFile(remoteClient, identifier, file, null);
+	}
+
+	/**
+	 * Sends a file to a client that has logged in. The file is transmitted
+	 * chunk by chunk, so it is never read into memory completely, and other
+	 * messages to the client are sent in between. In NIO mode without SSL and
+	 * encryption, the chunks are copied from the file system to the socket by
+	 * the operating system, without passing the heap. The client
+	 * stores the file in its file directory and then executes the method
+	 * registered for <i>identifier</i> with a Datapackage containing the
+	 * received <code>java.io.File</code>, the original name of the file and its
+	 * length.
+	 * 
+	 * @param remoteClient
+	 *            The target client
+	 * @param identifier
+	 *            The identifier of the Datapackage announcing the received file
+	 * @param file
+	 *            The file to send
+	 * @param listener
+	 *            Notified after every chunk transmitted, or null
+	 * @return A future completed once the file has been transmitted, or
+	 *         exceptionally if it cannot be read or the connection fails
+	 */
+	public CompletableFuture<Void> sendFile(RemoteClient remoteClient, String identifier, File file,
+			FileProgressListener listener) {
+		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+		Connection connection = remoteClient.getConnection();
+		if (connection == null) {
+			failed.completeExceptionally(new IOException("Client is not logged in"));
+			return failed;
+		}
+
+		FileTransfer transfer;
+		try {
+			transfer = new FileTransfer(connection.nextTransferId(), identifier, file, listener);
+		} catch (IOException e) {
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		try {
+			connection.send(transfer.offer(), Frames.NO_CORRELATION, codec);
+			connection.queueTransfer(transfer);
+		} catch (IOException e) {
+			onLogError("[SendFile] Fehler: " + e.getMessage());
+			transfer.fail(e);
+		}
+		return transfer.future();
+	}
+
+	/**
+	 * Sends a message to several clients. The message is encoded only once and
+	 * the same frame is written to every connection, so the cost of encoding
+	 * does not grow with the number of recipients.
+	 * 
+	 * @param recipients
+	 *            The target clients
+	 * @param message
+	 *            The message
+	 * @return The number of clients reached
+	 */
+	protected int broadcastMessage(Iterable<RemoteClient> recipients, Datapackage message) {
+		Frames.FrameOutputStream encoded = new Frames.FrameOutputStream(256);
+		try {
+			codec.encode(message, encoded);
+		} catch (IOException e) {
+			onLogError("[Broadcast] Fehler: " + e.getMessage());
+			return 0;
+		}
+		ByteBuffer frame = Frames.finish(encoded, Frames.NO_CORRELATION, codec.ordinal());
+		ByteBuffer compressedFrame = null;
+		boolean compressible = compression && encoded.payload().remaining() >= compressionThreshold;
+
+		// Nachricht an alle Empfaenger senden, fehlerhafte werden dabei entfernt
+		int rxCounter = 0;
+		for (RemoteClient current : recipients) {
+			Connection connection = current.getConnection();
+			ByteBuffer chosen = frame;
+			if (compressible && connection != null && connection.frameCodec.isCompressing()) {
+				if (compressedFrame == null) {
+					// Compressed once on its own, so every recipient can decompress it
+					compressedFrame = Frames.finish(Compression.deflate(encoded, null, compressionStatistics),
+							Frames.NO_CORRELATION, codec.ordinal() | Frames.FLAG_COMPRESSED);
+				}
+				chosen = compressedFrame;
+			}
+			if (sendFrame(current, chosen, message.id(), message.getPriority())) {
+				rxCounter++;
 			}
 		}
+		return rxCounter;
 	}
 
 	/**
@@ -297,7 +1201,7 @@ public abstract class Server {
 	 *            The client
 	 */
 	@Deprecated
-	public synchronized void sendMessage(Datapackage message, RemoteClient remoteClient) {
+	public void sendMessage(Datapackage message, RemoteClient remoteClient) {
 		sendMessage(remoteClient, message);
 	}
 
@@ -310,28 +1214,37 @@ public abstract class Server {
 	 *            The message
 	 * @return The number of clients reached
 	 */
-	public synchronized int broadcastMessageToGroup(String group, Datapackage message) {
-		toBeDeleted = new ArrayList<RemoteClient>();
-
-		// Nachricht an alle Sockets senden
-		int rxCounter = 0;
-		for (RemoteClient current : clients) {
-			if (current.getGroup().equals(group)) {
-				sendMessage(current, message);
-				rxCounter++;
-			}
-		}
+	public int broadcastMessageToGroup(String group, Datapackage message) {
+		return broadcastMessage(getGroupMembers(group), message);
+	}
 
-		// Alle Sockets, die fehlerhaft waren, im Anschluss loeschen
-		rxCounter -= toBeDeleted.size();
-		for (RemoteClient current : toBeDeleted) {
-			clients.remove(current);
-			onClientRemoved(current);
+	/**
+	 * Returns the clients registered as members of a group. The returned
+	 * collection is a read-only live view, iterating it takes time proportional
+	 * to the size of the group.
+	 * 
+	 * @param group
+	 *            The group name the clients registered on their login
+	 * @return The members of the group, empty if there are none
+	 */
+	public Collection<RemoteClient> getGroupMembers(String group) {
+		Set<RemoteClient> members = groups.get(group);
+		if (members == null) {
+			return Collections.emptySet();
 		}
+		return Collections.unmodifiableSet(members);
+	}
 
-		toBeDeleted = null;
-
-		return rxCounter;
+	/**
+	 * Counts the clients registered as members of a group
+	 * 
+	 * @param group
+	 *            The group name the clients registered on their login
+	 * @return The number of members of the group
+	 */
+	public int getGroupMemberCount(String group) {
+		Set<RemoteClient> members = groups.get(group);
+		return members != null ? members.size() : 0;
 	}
 
 	/**
@@ -341,31 +1254,14 @@ public abstract class Server {
 	 *            The message
 	 * @return The number of clients reached
 	 */
-	public synchronized int broadcastMessage(Datapackage message) {
-		toBeDeleted = new ArrayList<RemoteClient>();
-
-		// Nachricht an alle Sockets senden
-		int rxCounter = 0;
-		for (RemoteClient current : clients) {
-			sendMessage(current, message);
-			rxCounter++;
-		}
-
-		// Alle Sockets, die fehlerhaft waren, im Anschluss loeschen
-		rxCounter -= toBeDeleted.size();
-		for (RemoteClient current : toBeDeleted) {
-			clients.remove(current);
-			onClientRemoved(current);
-		}
-
-		toBeDeleted = null;
-
-		return rxCounter;
+	public int broadcastMessage(Datapackage message) {
+		return broadcastMessage(clients.values(), message);
 	}
 
 	/**
 	 * Registers a method that will be executed if a message containing
-	 * <i>identifier</i> is received
+	 * <i>identifier</i> is received. Identifiers are not case-sensitive. Methods
+	 * can be registered at any time, even while messages are being received.
 	 * 
 	 * @param identifier
 	 *            The ID of the message to proccess
@@ -379,7 +1275,7 @@ public abstract class Server {
 					+ "Since v1.0.1 the server automatically registers new clients. "
 					+ "To react on new client registed, use the onClientRegisters() Listener by overwriting it.");
 		} else {
-			idMethods.put(identifier, executable);
+			idMethods.put(Identifiers.normalize(identifier), executable);
 		}
 	}
 
@@ -388,10 +1284,10 @@ public abstract class Server {
 	 * been applied to register clients.
 	 */
 	protected void registerLoginMethod() {
-		idMethods.put(INTERNAL_LOGIN_ID, new Executable() {
+		idMethods.put(Identifiers.normalize(INTERNAL_LOGIN_ID), new Executable() {
 			@Override
 			public void run(Datapackage msg, Socket socket) {
-				if (msg.size() == 3) {
+				if (msg.size() >= 3) {
 					registerClient((String) msg.get(1), (String) msg.get(2), socket);
 				} else if (msg.size() == 2) {
 					registerClient((String) msg.get(1), socket);
@@ -405,19 +1301,21 @@ public abstract class Server {
 	}
 
 	/**
-	 * Registers a client to allow sending it direct and broadcast messages later
+	 * Registers a client to allow sending it direct and broadcast messages later.
+	 * A client registered before using the same id is replaced.
 	 * 
 	 * @param id
 	 *            The client's id
 	 * @param newClientSocket
 	 *            The client's socket
 	 */
-	protected synchronized void registerClient(String id, Socket newClientSocket) {
-		clients.add(new RemoteClient(id, newClientSocket));
+	protected void registerClient(String id, Socket newClientSocket) {
+		registerClient(new RemoteClient(id, newClientSocket));
 	}
 
 	/**
-	 * Registers a client to allow sending it direct and broadcast messages later
+	 * Registers a client to allow sending it direct and broadcast messages later.
+	 * A client registered before using the same id is replaced.
 	 * 
 	 * @param id
 	 *            The client's id
@@ -426,22 +1324,117 @@ public abstract class Server {
 	 * @param newClientSocket
 	 *            The client's socket
 	 */
-	protected synchronized void registerClient(String id, String group, Socket newClientSocket) {
-		clients.add(new RemoteClient(id, group, newClientSocket));
+	protected void registerClient(String id, String group, Socket newClientSocket) {
+		registerClient(new RemoteClient(id, group, newClientSocket));
+	}
+
+	/**
+	 * Adds a client to the registry. This never blocks sending messages to other
+	 * clients.
+	 * 
+	 * @param remoteClient
+	 *            The client to register
+	 */
+	protected void registerClient(final RemoteClient remoteClient) {
+		clientsBySocket.put(remoteClient.getSocket(), remoteClient);
+		groups.compute(remoteClient.getGroup(),
+				new BiFunction<String, Set<RemoteClient>, Set<RemoteClient>>() {
+					@Override
+					public Set<RemoteClient> apply(String group, Set<RemoteClient> members) {
+						if (members == null) {
+							members = Collections.newSetFromMap(new ConcurrentHashMap<RemoteClient, Boolean>());
+						}
+						members.add(remoteClient);
+						return members;
+					}
+				});
+
+		RemoteClient replaced = clients.put(remoteClient.getId(), remoteClient);
+		if (replaced != null && replaced != remoteClient) {
+			clientsBySocket.remove(replaced.getSocket(), replaced);
+			removeFromGroup(replaced);
+			onClientRemoved(replaced);
+		}
+	}
+
+	/**
+	 * Removes a client from the list of reachable clients and notifies
+	 * <code>onClientRemoved</code>, if it was registered
+	 * 
+	 * @param remoteClient
+	 *            The client to remove
+	 */
+	protected void removeClient(RemoteClient remoteClient) {
+		if (clients.remove(remoteClient.getId(), remoteClient)) {
+			clientsBySocket.remove(remoteClient.getSocket(), remoteClient);
+			removeFromGroup(remoteClient);
+			onClientRemoved(remoteClient);
+		}
+	}
+
+	/**
+	 * Removes a client from the index of its group. Groups without members are
+	 * dropped from the index.
+	 * 
+	 * @param remoteClient
+	 *            The client to remove
+	 */
+	private void removeFromGroup(final RemoteClient remoteClient) {
+		groups.computeIfPresent(remoteClient.getGroup(),
+				new BiFunction<String, Set<RemoteClient>, Set<RemoteClient>>() {
+					@Override
+					public Set<RemoteClient> apply(String group, Set<RemoteClient> members) {
+						members.remove(remoteClient);
+						return members.isEmpty() ? null : members;
+					}
+				});
+	}
+
+	/**
+	 * Removes the client registered with the given socket from the list of
+	 * reachable clients
+	 * 
+	 * @param socket
+	 *            The socket of the client to remove
+	 */
+	protected void removeClient(Socket socket) {
+		RemoteClient remoteClient = clientsBySocket.get(socket);
+		if (remoteClient != null) {
+			removeClient(remoteClient);
+		}
 	}
 
 	/**
 	 * Starts the server. This method is automatically called after
-	 * <code>preStart()</code> and starts the actual and the listening thread.
+	 * <code>preStart()</code> and starts the actual and the listening thread (or
+	 * the event loops, if the non-blocking transport is used).
 	 */
 	protected void start() {
 		server = null;
+
+		if (handlerExecutor == null) {
+			handlerExecutor = virtualThreads ? Threads.newVirtualExecutor("Server-Handler")
+					: new HandlerPool("Server-Handler");
+		}
+
+		if (encryption && keyPool == null) {
+			keyPool = new DHKeyPool(SessionCipher.GROUP, 16);
+		}
+
+		if (secureMode && sslContext == null) {
+			sslContext = createSSLContext();
+		}
+		if (nioMode) {
+			startEventLoops();
+			return;
+		}
+
 		try {
 
 			if (secureMode) {
-				server = ((SSLServerSocketFactory) SSLServerSocketFactory.getDefault()).createServerSocket(port);
+				server = sslContext.getServerSocketFactory().createServerSocket(port, ACCEPT_BACKLOG);
 			} else {
-				server = new ServerSocket(port);
+				server = new ServerSocket(port, ACCEPT_BACKLOG);
 			}
 
 		} catch (IOException e) {
@@ -451,14 +1444,40 @@ public abstract class Server {
 		startListening();
 	}
 
+	/**
+	 * Creates the <code>SSLContext</code> using the default key store, or the
+	 * context configured by the system properties if the key store cannot be
+	 * loaded
+	 */
+	private SSLContext createSSLContext() {
+		try {
+			return TlsSession.createContext(TlsSession.DEFAULT_STORE, TlsSession.DEFAULT_STORE_PASSWORD, true);
+		} catch (Exception e) {
+			onLogError("[Server] Error loading key store " + TlsSession.DEFAULT_STORE + ": " + e.getMessage());
+			try {
+				return SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e1) {
+				throw new IllegalStateException("SSL is not available", e1);
+			}
+		}
+	}
+
 	/**
 	 * Stops the server
 	 */
 	public void stop() {
-		if (listeningThread.isAlive()) {
+		if (listeningThread != null && listeningThread.isAlive()) {
 			listeningThread.interrupt();
 		}
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
+		if (keyPool != null) {
+			keyPool.close();
+		}
 
+		// Stop accepting first, so no connection is accepted after the others
+		// have been closed
 		if (server != null) {
 			try {
 				server.close();
@@ -466,6 +1485,15 @@ public abstract class Server {
 				e.printStackTrace();
 			}
 		}
+
+		if (eventLoops != null) {
+			for (EventLoop eventLoop : eventLoops) {
+				eventLoop.stop();
+			}
+		}
+		for (Connection connection : connections.values()) {
+			connection.close();
+		}
 	}
 
 	/**
@@ -473,7 +1501,7 @@ public abstract class Server {
 	 * 
 	 * @return The number of clients registered
 	 */
-	public synchronized int getClientCount() {
+	public int getClientCount() {
 		return clients.size();
 	}
 
@@ -530,6 +1558,36 @@ public abstract class Server {
 		// Overwrite this method when extending this class
 	}
 
+	/**
+	 * Called when a client exceeds its high watermark, i.e. messages for it are
+	 * sent faster than it receives them. The backpressure policy is applied to
+	 * the client until its buffer has been drained below the low watermark.
+	 * Called on the sending thread, so this method must return quickly.
+	 * 
+	 * @param remoteClient
+	 *            The throttled client
+	 */
+	public void onClientThrottled(RemoteClient remoteClient) {
+		// Overwrite this method when extending this class
+	}
+
+	/**
+	 * Called whenever a chunk of a file sent by a client has been received. Called
+	 * on the thread reading from the client, so this method must return quickly.
+	 * 
+	 * @param socket
+	 *            The socket of the client sending the file
+	 * @param identifier
+	 *            The identifier the file has been sent with
+	 * @param received
+	 *            The number of bytes received so far
+	 * @param length
+	 *            The length of the file
+	 */
+	public void onFileProgress(Socket socket, String identifier, long received, long length) {
+		// Overwrite this method when extending this class
+	}
+
 	/**
 	 * By default, this method is called whenever an output is to be made. If this
 	 * method is not overwritten, the output is passed to the system's default
@@ -562,12 +1620,15 @@ public abstract class Server {
 
 	/**
 	 * A RemoteClient representating a client connected to this server storing an id
-	 * for identification and a socket for communication.
+	 * for identification and a socket for communication. The connection state
+	 * belonging to the socket (e.g. its long-lived streams) is shared by all
+	 * RemoteClients using the same socket.
 	 */
 	protected class RemoteClient {
 		private String id;
 		private String group;
 		private Socket socket;
+		private Connection connection;
 
 		/**
 		 * Creates a RemoteClient representating a client connected to this server
@@ -583,6 +1644,7 @@ public abstract class Server {
 			this.id = id;
 			this.group = "_DEFAULT_GROUP_";
 			this.socket = socket;
+			this.connection = connections.get(socket);
 		}
 
 		/**
@@ -600,8 +1662,9 @@ public abstract class Server {
 		 */
 		public RemoteClient(String id, String group, Socket socket) {
 			this.id = id;
-			this.group = group;
+			this.group = group != null ? group : "_DEFAULT_GROUP_";
 			this.socket = socket;
+			this.connection = connections.get(socket);
 		}
 
 		public String getId() {
@@ -615,6 +1678,42 @@ public abstract class Server {
 		public Socket getSocket() {
 			return socket;
 		}
+
+		/**
+		 * @return The number of bytes buffered for this client, waiting to be
+		 *         transmitted
+		 */
+		public long getQueuedBytes() {
+			return connection != null ? connection.queuedBytes() : 0;
+		}
+
+		/**
+		 * @return The time in milliseconds since the epoch when something has
+		 *         last been received from this client, e.g. the answer to a ping
+		 */
+		public long getLastSeen() {
+			if (connection == null) {
+				return 0;
+			}
+			long idleNanos = System.nanoTime() - connection.lastReceived();
+			return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(idleNanos);
+		}
+
+		/**
+		 * @return true, if this client has exceeded its high watermark and its
+		 *         buffer has not been drained below the low watermark since
+		 */
+		public boolean isThrottled() {
+			return connection != null && connection.isThrottled();
+		}
+
+		/**
+		 * @return The connection the client is reachable by, or null if the socket
+		 *         is not managed by this server
+		 */
+		Connection getConnection() {
+			return connection;
+		}
 	}
 
 }
\ No newline at end of file
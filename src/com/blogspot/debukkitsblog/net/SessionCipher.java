@@ -0,0 +1,194 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.blogspot.debukkitsblog.crypt.DHKeyFactory;
+
+/**
+ * Encrypts or decrypts the bytes sent in one direction of a connection after
+ * the client and the server have agreed on a session key during the login.
+ * The bytes are split into records of at most <code>MAX_RECORD</code> bytes,
+ * regardless of the frames they contain, and every record is encrypted and
+ * authenticated using AES-GCM:<br>
+ * <code>[int length][ciphertext and 16 byte tag]</code><br>
+ * The length is authenticated as additional data. The nonce of a record is its
+ * sequence number, so records cannot be replayed, reordered or dropped without
+ * the receiver noticing. Each direction uses its own key derived from the
+ * agreed secret, so the sequence numbers of both directions never share a key.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class SessionCipher {
+
+	/**
+	 * The group the session keys are agreed in
+	 */
+	static final DHKeyFactory.Group GROUP = DHKeyFactory.Group.MODP_2048;
+
+	/**
+	 * The maximum number of plain bytes in a record
+	 */
+	static final int MAX_RECORD = 16 * 1024;
+
+	/**
+	 * The length of the authentication tag of a record
+	 */
+	static final int TAG_LENGTH = 16;
+
+	/**
+	 * The length of the header of a record
+	 */
+	static final int HEADER_LENGTH = 4;
+
+	/**
+	 * The maximum length of a record on the wire
+	 */
+	static final int MAX_SEALED_RECORD = HEADER_LENGTH + MAX_RECORD + TAG_LENGTH;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final int mode;
+	private final byte[] nonce = new byte[12];
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private long sequence;
+
+	private SessionCipher(byte[] key, int mode) throws GeneralSecurityException {
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.key = new SecretKeySpec(key, "AES");
+		this.mode = mode;
+		Arrays.fill(key, (byte) 0);
+	}
+
+	/**
+	 * Creates the cipher encrypting the records sent by one side
+	 *
+	 * @param exchange
+	 *            The key exchange, completed by setting the remote public key
+	 * @param client
+	 *            true, if the records are sent by the client
+	 * @return The cipher for the sending side
+	 * @throws GeneralSecurityException
+	 *             If AES-GCM is not available
+	 */
+	static SessionCipher forSending(DHKeyFactory exchange, boolean client) throws GeneralSecurityException {
+		return new SessionCipher(deriveKey(exchange.getFinalKey(), client), Cipher.ENCRYPT_MODE);
+	}
+
+	/**
+	 * Creates the cipher decrypting the records received by one side
+	 *
+	 * @param exchange
+	 *            The key exchange, completed by setting the remote public key
+	 * @param client
+	 *            true, if the records are received by the client
+	 * @return The cipher for the receiving side
+	 * @throws GeneralSecurityException
+	 *             If AES-GCM is not available
+	 */
+	static SessionCipher forReceiving(DHKeyFactory exchange, boolean client) throws GeneralSecurityException {
+		return new SessionCipher(deriveKey(exchange.getFinalKey(), !client), Cipher.DECRYPT_MODE);
+	}
+
+	/**
+	 * Derives the 128 bit key of one direction from the agreed secret
+	 */
+	private static byte[] deriveKey(BigInteger secret, boolean fromClient) throws GeneralSecurityException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update((fromClient ? "SimpleServerClient client" : "SimpleServerClient server").getBytes(UTF8));
+		digest.update(secret.toByteArray());
+		return Arrays.copyOf(digest.digest(), 16);
+	}
+
+	/**
+	 * Encrypts plain bytes into a record
+	 *
+	 * @param src
+	 *            The plain bytes, at most <code>MAX_RECORD</code>. They are
+	 *            consumed.
+	 * @param dst
+	 *            The buffer to put the record into, with room for
+	 *            <code>MAX_SEALED_RECORD</code> bytes
+	 * @throws IOException
+	 *             If the encryption fails
+	 */
+	void seal(ByteBuffer src, ByteBuffer dst) throws IOException {
+		int length = src.remaining() + TAG_LENGTH;
+		dst.putInt(length);
+		try {
+			init(length);
+			cipher.doFinal(src, dst);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Encrypting record failed", e);
+		}
+	}
+
+	/**
+	 * Decrypts and authenticates a record
+	 *
+	 * @param length
+	 *            The length of the record as read from its header
+	 * @param src
+	 *            The ciphertext and tag of the record. They are consumed.
+	 * @param dst
+	 *            The buffer to put the plain bytes into, with room for
+	 *            <code>length - TAG_LENGTH</code> bytes
+	 * @throws IOException
+	 *             If the record has been tampered with or is out of sequence
+	 */
+	void open(int length, ByteBuffer src, ByteBuffer dst) throws IOException {
+		try {
+			init(length);
+			cipher.doFinal(src, dst);
+		} catch (GeneralSecurityException e) {
+			throw new StreamCorruptedException("Record authentication failed");
+		}
+	}
+
+	/**
+	 * Checks the length read from the header of a received record
+	 *
+	 * @param length
+	 *            The length read
+	 * @return The length
+	 * @throws StreamCorruptedException
+	 *             If the length is invalid
+	 */
+	static int checkLength(int length) throws StreamCorruptedException {
+		if (length < TAG_LENGTH || length > MAX_RECORD + TAG_LENGTH) {
+			throw new StreamCorruptedException("Invalid record length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Initializes the cipher for the next record, using its sequence number as
+	 * nonce and its header as additional data
+	 */
+	private void init(int length) throws GeneralSecurityException {
+		long n = sequence++;
+		for (int i = 0; i < 8; i++) {
+			nonce[nonce.length - 1 - i] = (byte) (n >>> (8 * i));
+		}
+		cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		header[0] = (byte) (length >>> 24);
+		header[1] = (byte) (length >>> 16);
+		header[2] = (byte) (length >>> 8);
+		header[3] = (byte) length;
+		cipher.updateAAD(header);
+	}
+
+}
@@ -0,0 +1,461 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection using a blocking <code>Socket</code>. The buffered streams of
+ * the socket are kept for the lifetime of the connection.<br>
+ * Frames are written by the sending thread until <code>startWriting()</code>
+ * is called. From then on a dedicated writer thread drains the outbound queue,
+ * so senders return immediately even if the receiver does not read.<br>
+ * Once a session key has been agreed, the streams encrypt and decrypt
+ * everything passing them in records, see <code>SessionCipher</code>.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+class SocketConnection extends Connection {
+
+	private static final int MAX_BATCH = 64;
+
+	private final Socket socket;
+	private final SessionInputStream sessionIn;
+	private final SessionOutputStream sessionOut;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final WritableByteChannel outChannel;
+	private byte[] chunkBuffer = new byte[0];
+
+	// Guards the writer field and direct writes by the sending thread
+	private final ReentrantLock writerLock = new ReentrantLock();
+	private volatile Thread writer;
+	private volatile boolean closeWhenFlushed;
+
+	/**
+	 * Creates a connection for a connected socket
+	 *
+	 * @param socket
+	 *            The connected socket
+	 * @throws IOException
+	 *             If the streams of the socket cannot be opened
+	 */
+	SocketConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		// Above the buffers, so the bytes buffered before switching to decryption are decrypted
+		this.sessionIn = new SessionInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.sessionOut = new SessionOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(sessionIn);
+		this.out = sessionOut;
+		this.outChannel = Channels.newChannel(out);
+	}
+
+	/**
+	 * Reads the next message, blocking until it is complete. Chunks of files
+	 * are written to their files meanwhile; a completely received file is
+	 * returned as message. Fragments of large messages are collected until the
+	 * message is complete. Must be called by a single thread only.
+	 *
+	 * @return The frame read
+	 * @throws IOException
+	 *             If reading fails or the frame is corrupt
+	 * @throws ClassNotFoundException
+	 *             If the class of the message is unknown
+	 */
+	Frames.Frame read() throws IOException, ClassNotFoundException {
+		while (true) {
+			int length = Frames.checkLength(in.readInt());
+			int correlationId = in.readInt();
+			int flags = in.readUnsignedByte();
+			markReceived();
+
+			if (flags == Frames.FILE_CHUNK) {
+				if (length > FileTransfer.CHUNK_SIZE) {
+					throw new StreamCorruptedException("Invalid chunk length: " + length);
+				}
+				// Chunks go to their file, reuse the buffer for the next one
+				if (chunkBuffer.length < length) {
+					chunkBuffer = new byte[length];
+				}
+				in.readFully(chunkBuffer, 0, length);
+				Frames.Frame file = chunkReceived(correlationId, ByteBuffer.wrap(chunkBuffer, 0, length));
+				if (file != null) {
+					return file;
+				}
+				continue;
+			}
+
+			if (flags == Frames.FRAGMENT) {
+				if (length > Frames.MAX_FRAGMENT_LENGTH) {
+					throw new StreamCorruptedException("Invalid fragment length: " + length);
+				}
+				// The fragment is copied into the reassembled message
+				if (chunkBuffer.length < length) {
+					chunkBuffer = new byte[length];
+				}
+				in.readFully(chunkBuffer, 0, length);
+				Frames.Frame message = fragmentReceived(correlationId, ByteBuffer.wrap(chunkBuffer, 0, length));
+				Frames.Frame frame = message != null ? messageReceived(message) : null;
+				if (frame != null) {
+					return frame;
+				}
+				continue;
+			}
+
+			byte[] payload = Frames.readPayload(in, length);
+			Frames.Frame frame = messageReceived(
+					new Frames.Frame(correlationId, frameCodec.decode(flags, payload, 0, length)));
+			if (frame != null) {
+				return frame;
+			}
+		}
+	}
+
+	/**
+	 * Starts the thread writing the queued frames. Frames sent afterwards are
+	 * only queued.
+	 *
+	 * @param name
+	 *            The name of the writer thread
+	 * @param virtual
+	 *            true, if the writer is to be a virtual thread
+	 */
+	void startWriting(String name, boolean virtual) {
+		writerLock.lock();
+		try {
+			if (writer == null) {
+				writer = Threads.newThread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							writeQueued();
+						} catch (IOException e) {
+							// The reading side notices the closed socket and cleans up
+						}
+						close();
+					}
+				}, name, virtual, true);
+				writer.start();
+			}
+		} finally {
+			writerLock.unlock();
+		}
+	}
+
+	@Override
+	protected void write(ByteBuffer frame, String messageId, boolean discardable, Priority priority,
+			Runnable afterWritten) throws IOException {
+		writerLock.lock();
+		try {
+			if (writer == null) {
+				// No writer thread yet, write directly
+				out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+				out.flush();
+				if (afterWritten != null) {
+					afterWritten.run();
+				}
+				return;
+			}
+		} finally {
+			writerLock.unlock();
+		}
+		super.write(frame, messageId, discardable, priority, afterWritten);
+	}
+
+	@Override
+	void encryptSent(SessionCipher cipher) {
+		sessionOut.cipher = cipher;
+	}
+
+	@Override
+	void decryptReceived(SessionCipher cipher) {
+		sessionIn.cipher = cipher;
+	}
+
+	/**
+	 * Sets the timeout of blocking reads, e.g. while waiting for the server's
+	 * reply to a login
+	 *
+	 * @param timeout
+	 *            The timeout in milliseconds, 0 to wait forever
+	 * @throws IOException
+	 *             If the socket is closed
+	 */
+	void setReadTimeout(int timeout) throws IOException {
+		socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	protected void queueTransfer(FileTransfer transfer) throws IOException {
+		writerLock.lock();
+		try {
+			if (writer == null) {
+				// No writer thread yet, write all chunks directly
+				while (!transfer.isDone()) {
+					transfer.writeChunk(outChannel);
+					transfer.chunkWritten();
+				}
+				out.flush();
+				return;
+			}
+		} finally {
+			writerLock.unlock();
+		}
+		super.queueTransfer(transfer);
+	}
+
+	@Override
+	protected void scheduleFlush(boolean batchComplete) {
+		LockSupport.unpark(writer);
+	}
+
+	@Override
+	protected boolean mayBlock() {
+		return Thread.currentThread() != writer;
+	}
+
+	private void writeQueued() throws IOException {
+		ByteBuffer[] frames = new ByteBuffer[MAX_BATCH];
+		int unflushedMessages = 0;
+		long unflushedBytes = 0;
+		long deadline = 0;
+		ChunkedTransfer transfer;
+
+		while (isOpen()) {
+			int count = nextFrames(frames);
+			if (count > 0) {
+				if (unflushedMessages == 0) {
+					deadline = System.nanoTime() + batchDelayNanos();
+				}
+				for (int i = 0; i < count; i++) {
+					ByteBuffer frame = frames[i];
+					out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+					unflushedBytes += frame.remaining();
+					frame.position(frame.limit());
+					frames[i] = null;
+				}
+				unflushedMessages += count;
+				framesWritten();
+				if (batchDelayNanos() == 0 || !isBatchComplete(unflushedMessages, unflushedBytes)) {
+					// Without batching, flush once the queue has been drained
+					continue;
+				}
+			} else if ((transfer = nextTransfer()) != null) {
+				transfer.writeChunk(outChannel);
+				chunkWritten(transfer);
+				unflushedMessages++;
+				continue;
+			} else if (unflushedMessages > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					// Wait for further frames completing the batch
+					LockSupport.parkNanos(this, remaining);
+					continue;
+				}
+			} else {
+				if (closeWhenFlushed) {
+					return;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+
+			// Transmit what has been buffered
+			out.flush();
+			unflushedMessages = 0;
+			unflushedBytes = 0;
+		}
+	}
+
+	@Override
+	Socket socket() {
+		return socket;
+	}
+
+	@Override
+	boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	@Override
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		clearQueue();
+		releaseFiles();
+		frameCodec.release();
+		LockSupport.unpark(writer);
+	}
+
+	@Override
+	void closeWhenFlushed() {
+		writerLock.lock();
+		try {
+			if (writer == null) {
+				close();
+				return;
+			}
+		} finally {
+			writerLock.unlock();
+		}
+		closeWhenFlushed = true;
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Passes the bytes written through until a cipher is set, then collects them
+	 * into records and writes every record encrypted. A record is completed when
+	 * it is full or the stream is flushed.
+	 */
+	private static final class SessionOutputStream extends FilterOutputStream {
+
+		// Only accessed by the writing thread
+		SessionCipher cipher;
+		private ByteBuffer plain;
+		private ByteBuffer sealed;
+
+		SessionOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (cipher == null) {
+				out.write(b, off, len);
+				return;
+			}
+			if (plain == null) {
+				plain = ByteBuffer.allocate(SessionCipher.MAX_RECORD);
+				sealed = ByteBuffer.allocate(SessionCipher.MAX_SEALED_RECORD);
+			}
+			while (len > 0) {
+				int n = Math.min(len, plain.remaining());
+				plain.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!plain.hasRemaining()) {
+					writeRecord();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (plain != null && plain.position() > 0) {
+				writeRecord();
+			}
+			out.flush();
+		}
+
+		private void writeRecord() throws IOException {
+			plain.flip();
+			sealed.clear();
+			cipher.seal(plain, sealed);
+			out.write(sealed.array(), 0, sealed.position());
+			plain.clear();
+		}
+
+	}
+
+	/**
+	 * Passes the bytes read through until a cipher is set, then reads encrypted
+	 * records and returns their decrypted content
+	 */
+	private static final class SessionInputStream extends InputStream {
+
+		private final DataInputStream in;
+
+		// Only accessed by the reading thread
+		SessionCipher cipher;
+		private ByteBuffer sealed;
+		private ByteBuffer plain;
+
+		SessionInputStream(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (cipher == null) {
+				return in.read(b, off, len);
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (plain == null || !plain.hasRemaining()) {
+				if (!readRecord()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, plain.remaining());
+			plain.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * Reads and decrypts the next record
+		 *
+		 * @return false, if the stream has ended between two records
+		 */
+		private boolean readRecord() throws IOException {
+			if (plain == null) {
+				sealed = ByteBuffer.allocate(SessionCipher.MAX_SEALED_RECORD);
+				plain = ByteBuffer.allocate(SessionCipher.MAX_RECORD);
+			}
+			int length;
+			try {
+				length = SessionCipher.checkLength(in.readInt());
+			} catch (EOFException e) {
+				return false;
+			}
+			in.readFully(sealed.array(), 0, length);
+			sealed.clear();
+			sealed.limit(length);
+			plain.clear();
+			cipher.open(length, sealed, plain);
+			plain.flip();
+			return true;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (cipher == null) {
+				return in.available();
+			}
+			return plain != null ? plain.remaining() : 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the threads used by <code>Server</code> and <code>Client</code>.
+ * This implementation only supports platform threads. On Java 21 and later it
+ * is replaced by the version in <code>META-INF/versions/21</code> of the
+ * multi-release JAR, which adds virtual threads.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	/**
+	 * @return true, if the running Java version supports virtual threads
+	 */
+	static boolean isVirtualSupported() {
+		return false;
+	}
+
+	/**
+	 * Creates a thread that has not been started yet
+	 *
+	 * @param task
+	 *            The task executed by the thread
+	 * @param name
+	 *            The name of the thread
+	 * @param virtual
+	 *            true, if a virtual thread is to be created
+	 * @param daemon
+	 *            Whether a platform thread is a daemon thread. Virtual threads
+	 *            always are.
+	 * @return The new thread
+	 */
+	static Thread newThread(Runnable task, String name, boolean virtual, boolean daemon) {
+		if (virtual) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21");
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for every task
+	 *
+	 * @param name
+	 *            The prefix of the names of the executor's threads
+	 * @return The new executor
+	 */
+	static ExecutorService newVirtualExecutor(String name) {
+		throw new UnsupportedOperationException("Virtual threads require Java 21");
+	}
+
+}
@@ -0,0 +1,364 @@
+package com.blogspot.debukkitsblog.net;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS for a non-blocking <code>SocketChannel</code> using an
+ * <code>SSLEngine</code>. Reading unwraps the records received into
+ * application data, writing wraps the application data into records; both
+ * drive the handshake as far as the channel allows, so a connection waiting for
+ * its peer never blocks the event loop. At most one wrapped record waits for
+ * the channel to accept it; until it has been written, no further application
+ * data is accepted, so the callers handle a slow receiver like a full socket
+ * buffer.<br>
+ * The engines of a server share the session cache of its
+ * <code>SSLContext</code>, so returning clients resume their session with an
+ * abbreviated handshake.
+ *
+ * @author Leonard Bienbeck
+ * @version 2.4.0
+ */
+final class TlsSession implements GatheringByteChannel {
+
+	/**
+	 * The key store used if no <code>SSLContext</code> has been set
+	 */
+	static final String DEFAULT_STORE = "ssc.store";
+
+	/**
+	 * The password of the default key store
+	 */
+	static final String DEFAULT_STORE_PASSWORD = "SimpleServerClient";
+
+	private static final ByteBuffer[] NO_DATA = { ByteBuffer.allocate(0) };
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private ByteBuffer netIn;
+	private final ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private boolean handshakeFinished;
+	private boolean inboundClosed;
+
+	/**
+	 * Creates the TLS session of an accepted channel
+	 *
+	 * @param channel
+	 *            The channel, in non-blocking mode
+	 * @param engine
+	 *            The engine of the session, in server mode
+	 */
+	TlsSession(SocketChannel channel, SSLEngine engine) {
+		this.channel = channel;
+		this.engine = engine;
+		int packetSize = engine.getSession().getPacketBufferSize();
+		this.netIn = ByteBuffer.allocate(packetSize);
+		this.netOut = ByteBuffer.allocate(packetSize);
+		this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		netOut.flip();
+		appIn.flip();
+	}
+
+	/**
+	 * Creates an <code>SSLContext</code> using the keys or certificates of a key
+	 * store
+	 *
+	 * @param keyStore
+	 *            The path of the key store
+	 * @param password
+	 *            The password of the key store
+	 * @param server
+	 *            true, if the context is to authenticate a server using the key
+	 *            in the store; false, if it is to trust the certificates in the
+	 *            store
+	 * @return The context
+	 * @throws GeneralSecurityException
+	 *             If the key store cannot be used
+	 * @throws IOException
+	 *             If the key store cannot be read
+	 */
+	static SSLContext createContext(String keyStore, String password, boolean server)
+			throws GeneralSecurityException, IOException {
+		KeyStore store = KeyStore.getInstance("JKS");
+		InputStream in = new FileInputStream(keyStore);
+		try {
+			store.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		if (server) {
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(store, password.toCharArray());
+			context.init(keys.getKeyManagers(), null, null);
+		} else {
+			TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(store);
+			context.init(null, trust.getTrustManagers(), null);
+		}
+		return context;
+	}
+
+	/**
+	 * Reads from the channel and unwraps the records received. Application data
+	 * not fitting into the buffer is kept for the next call, see
+	 * <code>hasBufferedInput()</code>.
+	 *
+	 * @param dst
+	 *            The buffer to put the application data into
+	 * @return The number of bytes put into the buffer, possibly 0, or -1 if the
+	 *         peer has closed the connection
+	 * @throws IOException
+	 *             If reading fails or the handshake fails
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		if (!appIn.hasRemaining()) {
+			if (inboundClosed || channel.read(netIn) < 0) {
+				// An incomplete record is discarded
+				return -1;
+			}
+			unwrap();
+		}
+		int n = Math.min(appIn.remaining(), dst.remaining());
+		ByteBuffer part = appIn.duplicate();
+		part.limit(part.position() + n);
+		dst.put(part);
+		appIn.position(appIn.position() + n);
+		return n;
+	}
+
+	/**
+	 * @return true, if application data has been unwrapped that has not been
+	 *         returned by <code>read()</code> yet
+	 */
+	boolean hasBufferedInput() {
+		return appIn.hasRemaining();
+	}
+
+	/**
+	 * Writes the record waiting for the channel and continues the handshake if
+	 * it has been waiting for the channel
+	 *
+	 * @return true, if no record is waiting anymore
+	 * @throws IOException
+	 *             If writing fails or the handshake fails
+	 */
+	boolean flush() throws IOException {
+		if (!drain()) {
+			return false;
+		}
+		if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			handshake(HandshakeStatus.NEED_WRAP);
+			if (engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && netIn.position() > 0) {
+				// The peer's next messages may have arrived meanwhile
+				unwrap();
+			}
+		}
+		return !netOut.hasRemaining();
+	}
+
+	/**
+	 * @return true, if <code>flush()</code> is to be called, because a record
+	 *         waits for the channel, the handshake waits for a record to be
+	 *         wrapped, or the handshake has just finished and the application
+	 *         data written before can be wrapped now
+	 */
+	boolean wantsFlush() {
+		boolean finished = handshakeFinished;
+		handshakeFinished = false;
+		return finished || netOut.hasRemaining() || engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+	}
+
+	/**
+	 * Unwraps the complete records received, answering handshake messages
+	 */
+	private void unwrap() throws IOException {
+		netIn.flip();
+		appIn.compact();
+		try {
+			boolean progress = true;
+			while (progress) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+				switch (result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					int packetSize = engine.getSession().getPacketBufferSize();
+					if (netIn.capacity() < packetSize) {
+						// The session has negotiated larger records
+						ByteBuffer larger = ByteBuffer.allocate(packetSize);
+						larger.put(netIn);
+						larger.flip();
+						netIn = larger;
+					}
+					progress = false;
+					break;
+				case BUFFER_OVERFLOW:
+					if (appIn.position() == 0) {
+						appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+						progress = true;
+					} else {
+						// Deliver what has been unwrapped first
+						progress = false;
+					}
+					break;
+				case CLOSED:
+					inboundClosed = true;
+					progress = false;
+					break;
+				default:
+					break;
+				}
+				HandshakeStatus status = result.getHandshakeStatus();
+				handshake(status);
+				if (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP) {
+					// The records received next may be unwrapped now
+					progress |= engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && netIn.hasRemaining();
+				}
+			}
+		} finally {
+			netIn.compact();
+			appIn.flip();
+		}
+	}
+
+	/**
+	 * Continues the handshake after a wrap or unwrap. Handshake messages are
+	 * wrapped and written as far as the channel accepts them.
+	 */
+	private void handshake(HandshakeStatus status) throws IOException {
+		while (true) {
+			switch (status) {
+			case NEED_TASK:
+				// Certificate checks, short enough to run on the event loop
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				status = engine.getHandshakeStatus();
+				break;
+			case NEED_WRAP:
+				if (!drain()) {
+					// Continued by flush() once the channel becomes writable
+					return;
+				}
+				netOut.clear();
+				SSLEngineResult result;
+				try {
+					result = engine.wrap(NO_DATA, netOut);
+				} finally {
+					netOut.flip();
+				}
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) {
+					throw new SSLException("Handshake failed, session closed");
+				}
+				status = result.getHandshakeStatus();
+				break;
+			case FINISHED:
+				handshakeFinished = true;
+				return;
+			default:
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the record waiting for the channel
+	 *
+	 * @return true, if no record is waiting anymore
+	 */
+	private boolean drain() throws IOException {
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long consumed = 0;
+		while (drain()) {
+			netOut.clear();
+			SSLEngineResult result;
+			try {
+				result = engine.wrap(srcs, offset, length, netOut);
+			} finally {
+				netOut.flip();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new ClosedChannelException();
+			}
+			consumed += result.bytesConsumed();
+			handshake(result.getHandshakeStatus());
+			if (result.bytesConsumed() == 0 && !netOut.hasRemaining()) {
+				// Nothing left to write, or the handshake waits for the peer
+				break;
+			}
+		}
+		return consumed;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Sends the closure alert if the channel accepts it right away, then closes
+	 * the channel
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			engine.closeOutbound();
+			// The closure alert, or the alert explaining why the handshake failed
+			while (!engine.isOutboundDone() && drain()) {
+				netOut.clear();
+				SSLEngineResult result;
+				try {
+					result = engine.wrap(NO_DATA, netOut);
+				} finally {
+					netOut.flip();
+				}
+				if (result.bytesProduced() == 0) {
+					break;
+				}
+			}
+			drain();
+		} catch (IOException e) {
+			// Closing anyway
+		} finally {
+			channel.close();
+		}
+	}
+
+}